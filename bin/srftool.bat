@@ -0,0 +1,3 @@
+@echo off
+rem Runs SrfTool.jar with the class-data-sharing archive built alongside it.
+java -XX:SharedArchiveFile="%~dp0SrfTool.jsa" -Xshare:auto -jar "%~dp0SrfTool.jar" %*
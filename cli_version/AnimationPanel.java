@@ -0,0 +1,155 @@
+import java.awt.*;
+import java.awt.event.*;
+import java.awt.image.BufferedImage;
+import java.util.List;
+import javax.swing.*;
+
+// Shows a vehicle's frames one after another, centered in the panel.
+//
+// Frames are advanced by a Swing timer, so every change happens on the event
+// thread and the timer does the pacing.  Each frame is copied once, up front,
+// into an image compatible with the screen, which draws without any per-paint
+// format conversion.  While the panel isn't showing the timer is stopped.
+//
+// getMeanFrameTime() and friends report how far apart the frames actually
+// were, to check against the interval.
+@SuppressWarnings("serial")
+public class AnimationPanel extends JPanel implements ActionListener {
+  public static final int DEFAULT_INTERVAL = 120; // ms
+
+  Image[] frames = null;
+  int current = 0;
+  Timer timer;
+
+  // Frame timing, in nanoseconds: a moving average of the time between
+  // frames, and the worst seen since the images were set.
+  long lastFrameTime = 0;
+  double meanFrameTime = 0;
+  long maxFrameTime = 0;
+  int frameCount = 0;
+
+  public AnimationPanel() {
+    timer = new Timer(DEFAULT_INTERVAL, this);
+    timer.setCoalesce(true);
+    addHierarchyListener(new HierarchyListener() {
+      public void hierarchyChanged(HierarchyEvent e) {
+        if ((e.getChangeFlags() & HierarchyEvent.SHOWING_CHANGED) != 0) updateTimer();
+      }
+    });
+  }
+
+  public int getInterval() { return timer.getDelay(); }
+
+  public void setInterval(int millis) {
+    timer.setDelay(millis);
+    timer.setInitialDelay(millis);
+  }
+
+  // Replace the frames (BufferedImages) and start from the first one.
+  public void setImages(List<? extends Image> images) {
+    frames = new Image[images.size()];
+    for (int i = 0; i < frames.length; i++) frames[i] = prepare(images.get(i));
+    current = 0;
+    resetFrameTimes();
+    updateTimer();
+    repaint();
+  }
+
+  public void clear() {
+    frames = null;
+    timer.stop();
+    repaint();
+  }
+
+  public void start() {
+    updateTimer();
+  }
+
+  public void stop() {
+    timer.stop();
+  }
+
+  // Run the timer only while there's something to show and somewhere to
+  // show it.
+  void updateTimer() {
+    if (frames != null && frames.length > 1 && isShowing()) {
+      if (!timer.isRunning()) {
+        lastFrameTime = 0;
+        timer.start();
+      }
+    } else {
+      timer.stop();
+    }
+  }
+
+  // A copy of image in the screen's own format, or image itself if there's
+  // no screen to match.
+  Image prepare(Image image) {
+    GraphicsConfiguration gc = getGraphicsConfiguration();
+    if (gc == null && !GraphicsEnvironment.isHeadless()) {
+      gc = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration();
+    }
+    if (gc == null) return image;
+
+    int width = image.getWidth(null), height = image.getHeight(null);
+    BufferedImage copy = gc.createCompatibleImage(width, height, Transparency.TRANSLUCENT);
+    Graphics2D g = copy.createGraphics();
+    g.setComposite(AlphaComposite.Src);
+    g.drawImage(image, 0, 0, null);
+    g.dispose();
+    return copy;
+  }
+
+  // Timer tick: show the next frame.
+  public void actionPerformed(ActionEvent e) {
+    if (frames == null || !isShowing()) return;
+    long now = System.nanoTime();
+    if (lastFrameTime != 0) {
+      long elapsed = now - lastFrameTime;
+      meanFrameTime = (frameCount == 0) ? elapsed : meanFrameTime * 0.9 + elapsed * 0.1;
+      maxFrameTime = Math.max(maxFrameTime, elapsed);
+      frameCount += 1;
+    }
+    lastFrameTime = now;
+
+    // The old and new frames are the same size, so only that area changes.
+    Rectangle before = frameBounds();
+    current = (current + 1) % frames.length;
+    repaint(before.union(frameBounds()));
+  }
+
+  Rectangle frameBounds() {
+    if (frames == null) return new Rectangle();
+    Image image = frames[current];
+    int width = image.getWidth(null), height = image.getHeight(null);
+    return new Rectangle((getWidth() - width) / 2, (getHeight() - height) / 2, width, height);
+  }
+
+  protected void paintComponent(Graphics g) {
+    if (isBackgroundSet()) {
+      g.setColor(getBackground());
+      g.fillRect(0, 0, getWidth(), getHeight());
+    }
+    if (frames != null) {
+      Rectangle r = frameBounds();
+      g.drawImage(frames[current], r.x, r.y, null);
+    }
+  }
+
+  void resetFrameTimes() {
+    lastFrameTime = 0;
+    meanFrameTime = 0;
+    maxFrameTime = 0;
+    frameCount = 0;
+  }
+
+  // Measured time between frames, in milliseconds.
+  public double getMeanFrameTime() { return meanFrameTime / 1e6; }
+  public double getMaxFrameTime() { return maxFrameTime / 1e6; }
+  public int getFrameCount() { return frameCount; }
+
+  public String getFrameTimeStats() {
+    return String.format("%d frames, %.1f ms mean, %.1f ms worst (interval %d ms)",
+                         frameCount, getMeanFrameTime(), getMaxFrameTime(), getInterval());
+  }
+}
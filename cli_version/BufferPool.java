@@ -0,0 +1,182 @@
+import java.awt.image.*;
+import java.lang.management.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import javax.imageio.ImageTypeSpecifier;
+
+// Lends out the big things a conversion needs -- pixel arrays for images,
+// direct buffers for SRF planes and output -- and takes them back afterwards,
+// so a batch stops allocating them once it has warmed up.  Buffers are
+// grouped by size class, a quarter of a power of two apart, so one is never
+// more than a quarter bigger than asked for, and any thread can use one that
+// another gave back.
+//
+// The pool only holds on to what it's given back while that's under its
+// budget: srf.pool.mb megabytes, or an eighth of the maximum heap (direct
+// buffers count against it too).  Past that they're left to the collector.
+public class BufferPool {
+  public static final BufferPool SHARED = new BufferPool(defaultBudget());
+  static final int MIN_CLASS = 4096;
+
+  long budget;
+  long bytesHeld = 0;
+  // Size class -> buffers of that capacity that are free.
+  HashMap<Integer, ArrayDeque<byte[]>> byteArrays = new HashMap<Integer, ArrayDeque<byte[]>>();
+  HashMap<Integer, ArrayDeque<int[]>> intArrays = new HashMap<Integer, ArrayDeque<int[]>>();
+  HashMap<Integer, ArrayDeque<ByteBuffer>> directBuffers = new HashMap<Integer, ArrayDeque<ByteBuffer>>();
+  long takes = 0, hits = 0, dropped = 0;
+
+  public BufferPool(long budgetBytes) {
+    budget = budgetBytes;
+  }
+
+  public static long defaultBudget() {
+    String mb = System.getProperty("srf.pool.mb");
+    if (mb != null) return SrfBatch.safeParseInt(mb) * 1024L * 1024L;
+    return Runtime.getRuntime().maxMemory() / 8;
+  }
+
+  // The smallest size class that holds size: rounded up to a multiple of a
+  // quarter of the power of two below it.
+  static int sizeClass(int size) {
+    if (size <= MIN_CLASS) return MIN_CLASS;
+    int step = Integer.highestOneBit(size - 1) / 4;
+    return (int)Math.min(Integer.MAX_VALUE - 8, ((long)size + step - 1) / step * step);
+  }
+
+  //
+  // Arrays and buffers
+  //
+
+  // An array of at least size bytes, holding whatever it last held.
+  public byte[] takeBytes(int size) {
+    byte[] bytes = take(byteArrays, sizeClass(size));
+    return bytes != null ? bytes : new byte[sizeClass(size)];
+  }
+
+  // An array of at least size ints, holding whatever it last held.
+  public int[] takeInts(int size) {
+    int[] ints = take(intArrays, sizeClass(size));
+    return ints != null ? ints : new int[sizeClass(size)];
+  }
+
+  // A direct buffer with size bytes between its position (0) and limit,
+  // big-endian like a new one.
+  public ByteBuffer takeDirect(int size) {
+    ByteBuffer buffer = take(directBuffers, sizeClass(size));
+    if (buffer == null) buffer = ByteBuffer.allocateDirect(sizeClass(size));
+    buffer.clear();
+    buffer.limit(size);
+    return buffer;
+  }
+
+  public void give(byte[] bytes) {
+    give(byteArrays, bytes, bytes.length, bytes.length);
+  }
+
+  public void give(int[] ints) {
+    give(intArrays, ints, ints.length, ints.length * 4L);
+  }
+
+  public void give(ByteBuffer buffer) {
+    if (buffer.isDirect()) give(directBuffers, buffer, buffer.capacity(), buffer.capacity());
+  }
+
+  synchronized <T> T take(HashMap<Integer, ArrayDeque<T>> free, int sizeClass) {
+    takes += 1;
+    ArrayDeque<T> buffers = free.get(sizeClass);
+    if (buffers == null || buffers.isEmpty()) return null;
+    hits += 1;
+    T buffer = buffers.removeLast();
+    bytesHeld -= bytesOf(buffer);
+    return buffer;
+  }
+
+  synchronized <T> void give(HashMap<Integer, ArrayDeque<T>> free, T buffer, int capacity, long bytes) {
+    // Only buffers we could have handed out go back in.
+    if (sizeClass(capacity) != capacity || bytesHeld + bytes > budget) {
+      dropped += 1;
+      return;
+    }
+    ArrayDeque<T> buffers = free.get(capacity);
+    if (buffers == null) {
+      buffers = new ArrayDeque<T>();
+      free.put(capacity, buffers);
+    }
+    buffers.addLast(buffer);
+    bytesHeld += bytes;
+  }
+
+  static long bytesOf(Object buffer) {
+    if (buffer instanceof byte[]) return ((byte[])buffer).length;
+    if (buffer instanceof int[]) return ((int[])buffer).length * 4L;
+    return ((ByteBuffer)buffer).capacity();
+  }
+
+  //
+  // Images
+  //
+
+  // A width x height image of the given type over a pooled array, holding
+  // whatever pixels the array last held.  TYPE_INT_ARGB, TYPE_INT_RGB and
+  // TYPE_BYTE_GRAY come from the pool; other types are just made.
+  public BufferedImage takeImage(int width, int height, int type) {
+    if (type != BufferedImage.TYPE_INT_ARGB && type != BufferedImage.TYPE_INT_RGB &&
+        type != BufferedImage.TYPE_BYTE_GRAY) {
+      return new BufferedImage(width, height, type);
+    }
+    return takeImage(ImageTypeSpecifier.createFromBufferedImageType(type), width, height);
+  }
+
+  // An image like spec.createBufferedImage() would make, but over a pooled
+  // array if spec's pixels sit in a single int or byte array.  null if they
+  // don't.
+  public BufferedImage takeImage(ImageTypeSpecifier spec, int width, int height) {
+    SampleModel sm = spec.getSampleModel(width, height);
+    if (sm.getNumBands() == 0) return null;
+    DataBuffer data;
+    if (sm instanceof SinglePixelPackedSampleModel && sm.getDataType() == DataBuffer.TYPE_INT) {
+      int size = ((SinglePixelPackedSampleModel)sm).getScanlineStride() * height;
+      data = new DataBufferInt(takeInts(size), size);
+    } else if (sm instanceof PixelInterleavedSampleModel && sm.getDataType() == DataBuffer.TYPE_BYTE) {
+      int size = ((PixelInterleavedSampleModel)sm).getScanlineStride() * height;
+      data = new DataBufferByte(takeBytes(size), size);
+    } else {
+      return null;
+    }
+    WritableRaster raster = Raster.createWritableRaster(sm, data, null);
+    ColorModel cm = spec.getColorModel();
+    return new BufferedImage(cm, raster, cm.isAlphaPremultiplied(), null);
+  }
+
+  // Give back an image's pixel array.  The image mustn't be used again.
+  public void give(BufferedImage image) {
+    DataBuffer data = image.getRaster().getDataBuffer();
+    if (data.getNumBanks() != 1) return;
+    if (data instanceof DataBufferInt) give(((DataBufferInt)data).getData());
+    if (data instanceof DataBufferByte) give(((DataBufferByte)data).getData());
+  }
+
+  //
+  // Stats
+  //
+
+  public synchronized double getHitRate() {
+    return takes == 0 ? 0 : (double)hits / takes;
+  }
+
+  public synchronized String getStats() {
+    return String.format("%.1f%% hits of %d takes, %.1f MB held, %d dropped",
+                         getHitRate() * 100, takes, bytesHeld / (1024.0 * 1024.0), dropped);
+  }
+
+  // { collections, milliseconds } over every garbage collector so far.
+  public static long[] gcTotals() {
+    long count = 0, millis = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      count += Math.max(0, gc.getCollectionCount());
+      millis += Math.max(0, gc.getCollectionTime());
+    }
+    return new long[] { count, millis };
+  }
+}
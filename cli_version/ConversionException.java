@@ -0,0 +1,11 @@
+import java.io.IOException;
+
+// A conversion that can't go ahead -- missing input, existing output, bad
+// info file and so on.  The message is what the command line tools print.
+public class ConversionException extends IOException {
+  private static final long serialVersionUID = 1L;
+
+  public ConversionException(String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,160 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.*;
+
+// Keeps recently decoded vehicles around, so the GUI can switch back to one
+// without decoding it again.  Entries are keyed by path and only count as a
+// hit while the file's modification time and size are unchanged.
+//
+// The most recently used entries are held strongly up to a memory budget,
+// estimated from their pixel counts.  Entries pushed out by newer ones drop
+// to soft references rather than being thrown away, so they can still be
+// picked up again until the heap actually runs short.  Once the collector
+// has cleared one, its reference turns up on a queue, and the entry is
+// dropped the next time the cache is used.
+//
+// The budget is srf.cache.mb megabytes, or a quarter of the maximum heap.
+public class ImageCache {
+  long budget;
+  long bytesHeld = 0;
+  // Access-ordered, so the first entry is always the least recently used.
+  LinkedHashMap<String, Entry> strong = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  HashMap<String, SoftEntry> soft = new HashMap<String, SoftEntry>();
+  ReferenceQueue<Object> cleared = new ReferenceQueue<Object>();
+  int hits = 0, softHits = 0, misses = 0, evictions = 0;
+
+  static class Entry {
+    Object value;
+    long bytes, modified, length;
+  }
+
+  // The reference is the entry, so it can find its key when it's cleared.
+  static class SoftEntry extends SoftReference<Object> {
+    String path;
+    long bytes, modified, length;
+
+    SoftEntry(String path, Object value, ReferenceQueue<Object> queue) {
+      super(value, queue);
+      this.path = path;
+    }
+  }
+
+  public ImageCache() {
+    this(defaultBudget());
+  }
+
+  public ImageCache(long budgetBytes) {
+    budget = budgetBytes;
+  }
+
+  public static long defaultBudget() {
+    String mb = System.getProperty("srf.cache.mb");
+    if (mb != null) return SrfBatch.safeParseInt(mb) * 1024L * 1024L;
+    return Runtime.getRuntime().maxMemory() / 4;
+  }
+
+  // Roughly what a decoded image holds on to: four bytes a pixel.
+  // Subimages share their parent's pixels, so only count the full image.
+  public static long estimateBytes(BufferedImage image) {
+    return (long)image.getWidth() * image.getHeight() * 4;
+  }
+
+  // The cached value for path, or null if there isn't one or the file has
+  // changed since it was cached.
+  public synchronized Object get(String path) {
+    removeCleared();
+    File file = new File(path);
+    Entry entry = strong.get(path);
+    if (entry != null) {
+      if (entry.modified == file.lastModified() && entry.length == file.length()) {
+        hits += 1;
+        return entry.value;
+      }
+      remove(path);
+    }
+
+    SoftEntry softEntry = soft.remove(path);
+    if (softEntry != null) {
+      Object value = softEntry.get();
+      if (value != null && softEntry.modified == file.lastModified() && softEntry.length == file.length()) {
+        softHits += 1;
+        put(path, value, softEntry.bytes, softEntry.modified, softEntry.length);
+        return value;
+      }
+    }
+    misses += 1;
+    return null;
+  }
+
+  // Cache value for the file at path as it is now.  bytes is its estimated
+  // size (see estimateBytes()).
+  public synchronized void put(String path, Object value, long bytes) {
+    File file = new File(path);
+    put(path, value, bytes, file.lastModified(), file.length());
+  }
+
+  void put(String path, Object value, long bytes, long modified, long length) {
+    removeCleared();
+    remove(path);
+    Entry entry = new Entry();
+    entry.value = value;
+    entry.bytes = bytes;
+    entry.modified = modified;
+    entry.length = length;
+    strong.put(path, entry);
+    bytesHeld += bytes;
+
+    // Demote least recently used entries until we're back under budget.
+    // The newest entry goes too if it's bigger than the whole budget.
+    Iterator<Map.Entry<String, Entry>> i = strong.entrySet().iterator();
+    while (bytesHeld > budget && i.hasNext()) {
+      Map.Entry<String, Entry> eldest = i.next();
+      Entry e = eldest.getValue();
+      SoftEntry softEntry = new SoftEntry(eldest.getKey(), e.value, cleared);
+      softEntry.bytes = e.bytes;
+      softEntry.modified = e.modified;
+      softEntry.length = e.length;
+      soft.put(eldest.getKey(), softEntry);
+      bytesHeld -= e.bytes;
+      evictions += 1;
+      i.remove();
+    }
+  }
+
+  // Drop the soft entries whose values the collector has taken, unless
+  // the path has been cached again since.
+  void removeCleared() {
+    SoftEntry entry;
+    while ((entry = (SoftEntry)cleared.poll()) != null) {
+      if (soft.get(entry.path) == entry) soft.remove(entry.path);
+    }
+  }
+
+  public synchronized void remove(String path) {
+    Entry entry = strong.remove(path);
+    if (entry != null) bytesHeld -= entry.bytes;
+    soft.remove(path);
+  }
+
+  public synchronized void clear() {
+    strong.clear();
+    soft.clear();
+    bytesHeld = 0;
+  }
+
+  public synchronized int getHits() { return hits; }
+  public synchronized int getSoftHits() { return softHits; }
+  public synchronized int getMisses() { return misses; }
+  public synchronized int getEvictions() { return evictions; }
+  public synchronized long getBytesHeld() { return bytesHeld; }
+  public long getBudget() { return budget; }
+
+  public synchronized String getStats() {
+    removeCleared();
+    return hits + " hits, " + softHits + " soft hits, " + misses + " misses, " +
+           evictions + " evictions; " + strong.size() + " held (" + (bytesHeld / 1024) + "K of " +
+           (budget / 1024) + "K), " + soft.size() + " soft";
+  }
+}
@@ -0,0 +1,9 @@
+// The data isn't a well-formed SRF: wrong identifier, a bad header, or
+// sections running past the end.
+public class InvalidSrfException extends ConversionException {
+  private static final long serialVersionUID = 1L;
+
+  public InvalidSrfException(String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,9 @@
+// An image doesn't fit the section layout it's meant to be cut into, or a
+// layout has an empty section.
+public class LayoutMismatchException extends ConversionException {
+  private static final long serialVersionUID = 1L;
+
+  public LayoutMismatchException(String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,46 @@
+import jdk.jfr.*;
+
+// A Flight Recorder event for one phase of a conversion, so a recording
+// shows where each file's time went:
+//
+//   java -XX:StartFlightRecording=filename=srf.jfr Srf2Png vehicle.srf out
+//   jfr print --events srf.ConversionPhase srf.jfr
+//
+// Only PhaseTimer uses this class, and only after checking that the JVM has
+// jdk.jfr, so the converters still run on one without it.
+@Name("srf.ConversionPhase")
+@Label("Conversion Phase")
+@Category("SRF Converter")
+@Description("One phase of converting an SRF to PNGs, or PNGs to an SRF.")
+public class PhaseEvent extends Event {
+  @Label("Conversion")
+  String conversion;
+
+  @Label("File")
+  String file;
+
+  @Label("Phase")
+  String phase;
+
+  @Label("Bytes")
+  @DataAmount
+  long bytes;
+
+  static Object begin(String conversion, String file, String phase) {
+    PhaseEvent event = new PhaseEvent();
+    event.conversion = conversion;
+    event.file = file;
+    event.phase = phase;
+    event.begin();
+    return event;
+  }
+
+  static void commit(Object started, long bytes) {
+    PhaseEvent event = (PhaseEvent)started;
+    event.end();
+    if (event.shouldCommit()) {
+      event.bytes = bytes;
+      event.commit();
+    }
+  }
+}
@@ -0,0 +1,122 @@
+import java.util.*;
+
+// Times the phases of one conversion (reading the header, decoding,
+// writing the PNGs, and so on) and counts the bytes each one handled.  Each
+// phase is also a PhaseEvent in any Flight Recorder recording.
+//
+//   timer.start("decode");
+//   ...
+//   timer.end(bytesDecoded);
+//
+// A timer belongs to one conversion on one thread.  A phase that's started
+// more than once adds up.
+public class PhaseTimer {
+  static final boolean JFR = hasJfr();
+
+  String conversion, file;
+  // Phase name -> { nanoseconds, bytes }, in the order they first ran.
+  LinkedHashMap<String, long[]> phases = new LinkedHashMap<String, long[]>();
+  long created, finished;
+  String phase;
+  long phaseStart;
+  Object event;
+
+  // conversion is "srf2png" or "png2srf"; file is the input.
+  public PhaseTimer(String conversion, String file) {
+    this.conversion = conversion;
+    this.file = file;
+  }
+
+  public void start(String phase) {
+    this.phase = phase;
+    if (JFR) event = PhaseEvent.begin(conversion, file, phase);
+    phaseStart = System.nanoTime();
+    if (phases.isEmpty() && created == 0) created = phaseStart;
+  }
+
+  public void end(long bytes) {
+    long now = System.nanoTime();
+    if (event != null) {
+      PhaseEvent.commit(event, bytes);
+      event = null;
+    }
+    long[] totals = phases.get(phase);
+    if (totals == null) {
+      totals = new long[2];
+      phases.put(phase, totals);
+    }
+    totals[0] += now - phaseStart;
+    totals[1] += bytes;
+    finished = now;
+  }
+
+  public String getConversion() { return conversion; }
+  public String getFile() { return file; }
+  public Set<String> getPhases() { return phases.keySet(); }
+
+  // -1 if the phase never ran.
+  public long getNanos(String phase) {
+    long[] totals = phases.get(phase);
+    return totals == null ? -1 : totals[0];
+  }
+
+  public long getBytes(String phase) {
+    long[] totals = phases.get(phase);
+    return totals == null ? 0 : totals[1];
+  }
+
+  // From the start of the first phase to the end of the last, so a
+  // conversion queued behind others isn't charged for the wait.
+  public long getTotalNanos() {
+    return finished - created;
+  }
+
+  // One line of JSON, e.g.
+  //   {"conversion":"srf2png","file":"a.srf","total_ms":41.206,
+  //    "phases":[{"phase":"header","ms":0.812,"bytes":74496},...]}
+  public String toJson() {
+    StringBuilder json = new StringBuilder();
+    json.append("{\"conversion\":").append(quote(conversion));
+    json.append(",\"file\":").append(quote(file));
+    json.append(",\"total_ms\":").append(millis(getTotalNanos()));
+    json.append(",\"phases\":[");
+    boolean first = true;
+    for (Map.Entry<String, long[]> entry : phases.entrySet()) {
+      if (!first) json.append(',');
+      first = false;
+      json.append("{\"phase\":").append(quote(entry.getKey()));
+      json.append(",\"ms\":").append(millis(entry.getValue()[0]));
+      json.append(",\"bytes\":").append(entry.getValue()[1]).append('}');
+    }
+    return json.append("]}").toString();
+  }
+
+  static String millis(long nanos) {
+    return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+  }
+
+  static String quote(String s) {
+    if (s == null) return "null";
+    StringBuilder quoted = new StringBuilder("\"");
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '"' || c == '\\') {
+        quoted.append('\\').append(c);
+      } else if (c < 0x20) {
+        quoted.append(String.format("\\u%04x", (int)c));
+      } else {
+        quoted.append(c);
+      }
+    }
+    return quoted.append('"').toString();
+  }
+
+  static boolean hasJfr() {
+    try {
+      Class.forName("jdk.jfr.Event");
+      return true;
+    } catch (Throwable e) {
+      return false;
+    }
+  }
+}
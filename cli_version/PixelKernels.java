@@ -0,0 +1,247 @@
+import java.awt.image.BufferedImage;
+import java.nio.*;
+
+// Scanline-at-a-time versions of the SRF pixel transforms: RGB565 colors
+// ("rrrrrggggg0bbbbb") and the inverted 7-bit alpha.  They must match
+// Srf2Png/Png2Srf's decodeColor, encodeColor, decodeAlpha and encodeAlpha bit
+// for bit; run "java PixelKernels" to check every input exhaustively.
+//
+// There are two implementations.  BULK copies each scanline out of the plane
+// buffers in one go and runs branch-free, table-driven loops over plain
+// arrays, which the JIT can unroll and vectorize.  SCALAR works a pixel at a
+// time straight off the buffers.  BULK is the default; start the JVM with
+// -Dsrf.kernels=scalar to use SCALAR instead.
+public abstract class PixelKernels {
+  // Alpha byte -> 8-bit alpha, same as decodeAlpha().
+  static final int[] ALPHA = new int[256];
+  // Alpha byte -> the gray sample setRGB() would have stored in a
+  // TYPE_BYTE_GRAY mask.  That image uses a linear gray color space, so the
+  // stored value isn't simply the alpha; ask the ColorModel once per value.
+  static final byte[] MASK_GRAY = new byte[256];
+  // 8-bit alpha -> alpha byte, same as encodeAlpha().
+  static final byte[] ENCODED_ALPHA = new byte[256];
+
+  static {
+    BufferedImage probe = new BufferedImage(1, 1, BufferedImage.TYPE_BYTE_GRAY);
+    for (int i = 0; i < 256; i++) {
+      int a = decodeAlpha(i);
+      ALPHA[i] = a;
+      probe.setRGB(0, 0, (a << 16) + (a << 8) + a);
+      MASK_GRAY[i] = (byte)probe.getRaster().getSample(0, 0, 0);
+      ENCODED_ALPHA[i] = (byte)encodeAlpha(i);
+    }
+  }
+
+  public static final PixelKernels SCALAR = new Scalar();
+  public static final PixelKernels BULK = new Bulk();
+  static final PixelKernels DEFAULT = "scalar".equals(System.getProperty("srf.kernels")) ? SCALAR : BULK;
+
+  public static PixelKernels get() {
+    return DEFAULT;
+  }
+
+  // Decode width pixels starting at pixel pos of a section's planes.  The
+  // RGB plane is read as little-endian shorts.
+  public abstract void decodeArgb(ByteBuffer alpha, ShortBuffer rgb, int pos, int[] dst, int dstPos, int width);
+  public abstract void decodeRgb(ShortBuffer rgb, int pos, int[] dst, int dstPos, int width);
+  public abstract void decodeMask(ByteBuffer alpha, int pos, byte[] dst, int dstPos, int width);
+
+  // Encode width pixels.  The alpha is the byte at (src >> shift): 24 for
+  // ARGB pixels, 0 for pixels from a mask image.
+  public abstract void encodeAlpha(int[] src, int srcPos, int shift, byte[] dst, int dstPos, int width);
+  public abstract void encodeColor(int[] src, int srcPos, short[] dst, int dstPos, int width);
+
+  // Convert a 7-bit inverted alpha value to 8-bit standard.
+  static int decodeAlpha(int b) {
+    int a = (b & 255) << 1;
+    if (a >= 254) a = 255;
+    return 255 - a;
+  }
+
+  // Turn a 16-bit color into a 24-bit one.
+  static int decodeColor(int v) {
+    return ((v & 0xf800) << 8) + ((v & 0x07c0) << 5) + ((v & 0x001f) << 3);
+  }
+
+  // Convert an 8-bit alpha value to 7-bit inverted.
+  static int encodeAlpha(int a) {
+    a = (255 - (a & 255)) >> 1;
+    if (a == 127) return 128;
+    return a;
+  }
+
+  // Turn a 24-bit color into a 16-bit one.
+  static int encodeColor(int c) {
+    return (((c & 0xff0000) >> 19) << 11) + (((c & 0x00ff00) >> 11) << 6) + ((c & 0x0000ff) >> 3);
+  }
+
+  static class Scalar extends PixelKernels {
+    public void decodeArgb(ByteBuffer alpha, ShortBuffer rgb, int pos, int[] dst, int dstPos, int width) {
+      for (int i = 0; i < width; i++) {
+        dst[dstPos + i] = (ALPHA[alpha.get(pos + i) & 255] << 24) + decodeColor(rgb.get(pos + i) & 0xffff);
+      }
+    }
+
+    public void decodeRgb(ShortBuffer rgb, int pos, int[] dst, int dstPos, int width) {
+      for (int i = 0; i < width; i++) {
+        dst[dstPos + i] = decodeColor(rgb.get(pos + i) & 0xffff);
+      }
+    }
+
+    public void decodeMask(ByteBuffer alpha, int pos, byte[] dst, int dstPos, int width) {
+      for (int i = 0; i < width; i++) {
+        dst[dstPos + i] = MASK_GRAY[alpha.get(pos + i) & 255];
+      }
+    }
+
+    public void encodeAlpha(int[] src, int srcPos, int shift, byte[] dst, int dstPos, int width) {
+      for (int i = 0; i < width; i++) {
+        dst[dstPos + i] = (byte)encodeAlpha(src[srcPos + i] >> shift);
+      }
+    }
+
+    public void encodeColor(int[] src, int srcPos, short[] dst, int dstPos, int width) {
+      for (int i = 0; i < width; i++) {
+        dst[dstPos + i] = (short)encodeColor(src[srcPos + i]);
+      }
+    }
+  }
+
+  static class Bulk extends PixelKernels {
+    // Per-thread copies of the scanline being decoded.
+    static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+      protected Scratch initialValue() { return new Scratch(); }
+    };
+
+    static class Scratch {
+      byte[] alpha = new byte[0];
+      short[] rgb = new short[0];
+
+      byte[] alpha(ByteBuffer src, int pos, int width) {
+        if (alpha.length < width) alpha = new byte[width];
+        ByteBuffer view = src.duplicate();
+        view.position(pos);
+        view.get(alpha, 0, width);
+        return alpha;
+      }
+
+      short[] rgb(ShortBuffer src, int pos, int width) {
+        if (rgb.length < width) rgb = new short[width];
+        ShortBuffer view = src.duplicate();
+        view.position(pos);
+        view.get(rgb, 0, width);
+        return rgb;
+      }
+    }
+
+    public void decodeArgb(ByteBuffer alpha, ShortBuffer rgb, int pos, int[] dst, int dstPos, int width) {
+      Scratch scratch = SCRATCH.get();
+      byte[] a = scratch.alpha(alpha, pos, width);
+      short[] c = scratch.rgb(rgb, pos, width);
+      for (int i = 0; i < width; i++) {
+        int v = c[i] & 0xffff;
+        dst[dstPos + i] = (ALPHA[a[i] & 255] << 24) | ((v & 0xf800) << 8) | ((v & 0x07c0) << 5) | ((v & 0x001f) << 3);
+      }
+    }
+
+    public void decodeRgb(ShortBuffer rgb, int pos, int[] dst, int dstPos, int width) {
+      short[] c = SCRATCH.get().rgb(rgb, pos, width);
+      for (int i = 0; i < width; i++) {
+        int v = c[i] & 0xffff;
+        dst[dstPos + i] = ((v & 0xf800) << 8) | ((v & 0x07c0) << 5) | ((v & 0x001f) << 3);
+      }
+    }
+
+    public void decodeMask(ByteBuffer alpha, int pos, byte[] dst, int dstPos, int width) {
+      byte[] a = SCRATCH.get().alpha(alpha, pos, width);
+      for (int i = 0; i < width; i++) {
+        dst[dstPos + i] = MASK_GRAY[a[i] & 255];
+      }
+    }
+
+    // A table lookup beats both the branch and branch-free arithmetic here.
+    public void encodeAlpha(int[] src, int srcPos, int shift, byte[] dst, int dstPos, int width) {
+      for (int i = 0; i < width; i++) {
+        dst[dstPos + i] = ENCODED_ALPHA[(src[srcPos + i] >> shift) & 255];
+      }
+    }
+
+    public void encodeColor(int[] src, int srcPos, short[] dst, int dstPos, int width) {
+      for (int i = 0; i < width; i++) {
+        int c = src[srcPos + i];
+        dst[dstPos + i] = (short)(((c >> 8) & 0xf800) | ((c >> 5) & 0x07c0) | ((c >> 3) & 0x001f));
+      }
+    }
+  }
+
+  // Check both implementations against the original per-pixel methods, over
+  // every 16-bit color with every alpha byte, every 24-bit color, and every
+  // alpha value in both ARGB and mask position.
+  public static void main(String[] args) {
+    Srf2Png s2p = new Srf2Png(SrfBatch.QUIET);
+    Png2Srf p2s = new Png2Srf(SrfBatch.QUIET);
+    PixelKernels[] kernels = { SCALAR, BULK };
+    String[] names = { "scalar", "bulk" };
+    int failures = 0;
+
+    ByteBuffer colors = ByteBuffer.allocate(65536 * 2).order(ByteOrder.LITTLE_ENDIAN);
+    for (int v = 0; v < 65536; v++) colors.putShort(v * 2, (short)v);
+    ShortBuffer rgb = colors.asShortBuffer();
+    ByteBuffer alpha = ByteBuffer.allocate(65536);
+    int[] argb = new int[65536];
+    byte[] mask = new byte[65536];
+    int[] pixels = new int[1 << 24];
+    for (int c = 0; c < pixels.length; c++) pixels[c] = c;
+    short[] encoded = new short[pixels.length];
+    byte[] encodedAlpha = new byte[512];
+    int[] alphaPixels = new int[512];
+    for (int a = 0; a < 256; a++) {
+      alphaPixels[a] = (a << 24) | 0x5a5a5a;
+      alphaPixels[256 + a] = 0x5a5a5a00 | a;
+    }
+    BufferedImage probe = new BufferedImage(1, 1, BufferedImage.TYPE_BYTE_GRAY);
+
+    for (int k = 0; k < kernels.length; k++) {
+      int mismatches = 0;
+
+      // Decode: every color, under every alpha byte.
+      for (int b = 0; b < 256; b++) {
+        for (int i = 0; i < 65536; i++) alpha.put(i, (byte)b);
+        int expectedAlpha = s2p.decodeAlpha((byte)b);
+        probe.setRGB(0, 0, (expectedAlpha << 16) + (expectedAlpha << 8) + expectedAlpha);
+        byte expectedGray = (byte)probe.getRaster().getSample(0, 0, 0);
+
+        kernels[k].decodeArgb(alpha, rgb, 0, argb, 0, 65536);
+        for (int v = 0; v < 65536; v++) {
+          int expected = (expectedAlpha << 24) + s2p.decodeColor((byte)v, (byte)(v >> 8));
+          if (argb[v] != expected) mismatches += 1;
+        }
+        kernels[k].decodeMask(alpha, 0, mask, 0, 65536);
+        for (int i = 0; i < 65536; i++) {
+          if (mask[i] != expectedGray) mismatches += 1;
+        }
+      }
+      kernels[k].decodeRgb(rgb, 0, argb, 0, 65536);
+      for (int v = 0; v < 65536; v++) {
+        if (argb[v] != s2p.decodeColor((byte)v, (byte)(v >> 8))) mismatches += 1;
+      }
+
+      // Encode: every 24-bit color (with some alpha on top), every alpha.
+      for (int c = 0; c < pixels.length; c++) pixels[c] = c | ((c & 0xff) << 24);
+      kernels[k].encodeColor(pixels, 0, encoded, 0, pixels.length);
+      for (int c = 0; c < pixels.length; c++) {
+        if ((encoded[c] & 0xffff) != p2s.encodeColor(pixels[c] & 0xffffff)) mismatches += 1;
+      }
+      kernels[k].encodeAlpha(alphaPixels, 0, 24, encodedAlpha, 0, 256);
+      kernels[k].encodeAlpha(alphaPixels, 256, 0, encodedAlpha, 256, 256);
+      for (int a = 0; a < 256; a++) {
+        if (encodedAlpha[a] != p2s.encodeAlpha(alphaPixels[a] >> 24)) mismatches += 1;
+        if (encodedAlpha[256 + a] != p2s.encodeAlpha(alphaPixels[256 + a])) mismatches += 1;
+      }
+
+      System.out.println(names[k] + ": " + (mismatches == 0 ? "OK" : mismatches + " mismatches"));
+      failures += mismatches;
+    }
+    if (failures > 0) System.exit(1);
+  }
+}
@@ -1,36 +1,110 @@
 import java.awt.*;
 import java.awt.image.*;
-import javax.imageio.ImageIO;
 import java.io.*;
-import java.util.Arrays;
+import java.nio.channels.*;
+import java.util.HashMap;
 
+// Converts a PNG (or a PNG plus a mask PNG) and its info file into an SRF.
+//
+// Everything about a conversion lives in local variables, so one instance can
+// run any number of conversions, including at the same time from several
+// threads (see SrfBatch).
 public class Png2Srf {
-  int checksum = 0;
-  int sectionCount = 0;
-  int[] sectionWidths = new int[10];
-  int[] sectionHeights = new int[10];
-  BufferedImage rgbImage = null, maskImage = null;
+  PrintStream log;
+
+  public Png2Srf() {
+    this(System.out);
+  }
+
+  // Progress messages go to log; pass SrfBatch.QUIET to drop them.
+  public Png2Srf(PrintStream log) {
+    this.log = log;
+  }
   
   public static void main(String[] args) {
+    // Where messages go: standard error when standard output carries the SRF.
+    PrintStream messages = System.out;
     try {
       boolean forceOverwrite = false;
+      boolean json = false;
+      String infoFilename = null;
       
       // Check for the "-f" command line arg.
       int curArg = 0;
-      while (curArg < args.length && args[curArg].startsWith("-")) {
-        if (args[curArg].indexOf("f") >= 0) forceOverwrite = true;
+      while (curArg < args.length && args[curArg].startsWith("-") && !args[curArg].equals("-")) {
+        if (args[curArg].equals("--json")) {
+          json = true;
+        } else if (args[curArg].startsWith("--info=")) {
+          infoFilename = args[curArg].substring(7);
+        } else if (SrfBatch.isFlags(args[curArg], "f")) {
+          forceOverwrite = true;
+        } else {
+          printUsage();
+          return;
+        }
         curArg += 1;
       }
       
       if (curArg == (args.length - 2)) {
-        Png2Srf p2s = new Png2Srf();
-        p2s.convert(args[curArg], args[curArg + 1], forceOverwrite);
+        String pngBase = args[curArg], srfFilename = args[curArg + 1];
+        if (srfFilename.equals("-")) messages = System.err;
+        Png2Srf p2s = new Png2Srf(messages);
+        PhaseTimer timer = new PhaseTimer("png2srf", pngBase);
+        if (pngBase.equals("-") || srfFilename.equals("-")) {
+          convertStreams(p2s, pngBase, srfFilename, infoFilename, forceOverwrite, timer);
+        } else {
+          p2s.convert(pngBase, srfFilename, forceOverwrite, timer);
+        }
+        if (json) messages.println(timer.toJson());
       } else {
         printUsage();
       }
       
+    } catch (ConversionException e) {
+      messages.println(e.getMessage());
+      System.exit(1);
     } catch (IOException e) {
-      System.out.println("Error encountered!");
+      messages.println("Error encountered!");
+      System.exit(1);
+    }
+  }
+
+  // A conversion with standard input or output, or both, in place of files.
+  // Standard input is the PNG, and needs --info; a png_base gives both.
+  static void convertStreams(Png2Srf p2s, String pngBase, String srfFilename, String infoFilename,
+                             boolean forceOverwrite, PhaseTimer timer) throws IOException {
+    InputStream pngIn;
+    if (pngBase.equals("-")) {
+      if (infoFilename == null) throw new ConversionException("Error: Reading the PNG from standard input needs --info.");
+      pngIn = System.in;
+    } else {
+      if (p2s.extName(pngBase).equalsIgnoreCase(".png")) pngBase = pngBase.substring(0, pngBase.length() - 4);
+      if (infoFilename == null) infoFilename = pngBase + "_info.txt";
+      if (!new File(pngBase + ".png").exists()) {
+        throw new ConversionException("Error: Couldn't find file '" + pngBase + ".png'.");
+      }
+      pngIn = new FileInputStream(pngBase + ".png");
+    }
+
+    if (srfFilename.equals("-")) {
+      // Held back until it's all there, so a failure part way through sends
+      // nothing down the pipe rather than half an SRF.
+      ByteArrayOutputStream srf = new ByteArrayOutputStream(64 * 1024);
+      p2s.convert(pngIn, infoFilename, Channels.newChannel(srf), timer);
+      srf.writeTo(System.out);
+      System.out.flush();
+      return;
+    }
+    if (!forceOverwrite && new File(srfFilename).exists()) {
+      throw new ConversionException("Error: File '" + srfFilename + "' already exists.  Use the '-f' option to overwrite existing files.");
+    }
+    boolean written = false;
+    try {
+      p2s.convert(pngIn, infoFilename, new FileOutputStream(srfFilename).getChannel(), timer);
+      written = true;
+    } finally {
+      // Don't leave half an SRF behind.
+      if (!written) new File(srfFilename).delete();
     }
   }
   
@@ -40,21 +114,35 @@ public class Png2Srf {
     System.out.println("");
     System.out.println("Options:");
     System.out.println("  -f Force overwriting of existing file.");
+    System.out.println("  --json Finish with a line of JSON timing each phase.");
+    System.out.println("  --info=FILE Read the info file from FILE (needed with png_base '-').");
+    System.out.println("");
+    System.out.println("A png_base of '-' reads the PNG from standard input, and an");
+    System.out.println("srf_filename of '-' writes the SRF to standard output, in one pass.");
     System.out.println("");
     System.out.println("Example: java Png2Srf vehicle newvehicle.srf");
     System.out.println("  Reads vehicle_info.txt, vehicle.png, (and");
     System.out.println("  possibly vehicle_mask.png), and outputs");
     System.out.println("  newvehicle.srf.");
+    System.out.println("Example: java Png2Srf --info=car_info.txt - - < car.png > car.srf");
     System.out.println("");
   }
   
   public void convert(String pngBase, String srfFilename, boolean forceOverwrite) throws IOException {
+    convert(pngBase, srfFilename, forceOverwrite, new PhaseTimer("png2srf", pngBase));
+  }
+
+  // The same, timing each phase with timer: "info" (reading the info file),
+  // "png" (reading the PNGs), "encode" (making the SRF's planes in memory)
+  // and "write" (writing the SRF, footer and all).  The last three take
+  // turns, a section at a time, and add up.
+  public void convert(String pngBase, String srfFilename, boolean forceOverwrite, PhaseTimer timer) throws IOException {
     int i;
     File file;
     
     // Be a little helpful if they added the .png extension.
     if (extName(pngBase).equalsIgnoreCase(".png")) {
-      System.out.println("Note: stripping '.png' off the end of png_base.");
+      log.println("Note: stripping '.png' off the end of png_base.");
       pngBase = pngBase.substring(0,pngBase.length() - 4);
     }
     
@@ -64,31 +152,103 @@ public class Png2Srf {
     for (i = 0; i < filenames.length; i ++) {
       file = new File(filenames[i]);
       if (!file.exists()) {
-        System.out.println("Error: Couldn't find file '" + filenames[i] + "'.");
-        return;
+        throw new ConversionException("Error: Couldn't find file '" + filenames[i] + "'.");
       }
     }
 
     // Be a little helpful if they forgot the .srf extension.
     if (extName(srfFilename).equals("")) {
-      System.out.println("Note: adding '.srf' to the end of srf_filename.");
+      log.println("Note: adding '.srf' to the end of srf_filename.");
       srfFilename += ".srf";
     }
     
     file = new File(srfFilename);
     if (!forceOverwrite && file.exists()) {
-      System.out.println("Error: File '" + srfFilename + "' already exists.  Use the '-f' option to overwrite existing files.");
-      return;
+      throw new ConversionException("Error: File '" + srfFilename + "' already exists.  Use the '-f' option to overwrite existing files.");
+    }
+
+    Info info = readInfo(filenames[1], timer);
+
+    // Only the PNGs' headers are read here.  Each section's rows are read
+    // as it's written, so no more than one section is ever in memory.
+    PngRowReader rgbReader = null, maskReader = null;
+    SrfWriter srf = null;
+    boolean written = false;
+    try {
+      rgbReader = PngRowReader.open(filenames[0]);
+      if (info.maskFilename != null) maskReader = PngRowReader.open(info.maskFilename);
+      long pngBytes = new File(filenames[0]).length() + (info.maskFilename != null ? new File(info.maskFilename).length() : 0);
+
+      srf = new SrfWriter(srfFilename);
+      writeSections(srf, info.layout, rgbReader, maskReader, pngBytes, timer);
+      srf.close();
+      written = true;
+    } finally {
+      if (rgbReader != null) rgbReader.close();
+      if (maskReader != null) maskReader.close();
+      if (!written && srf != null) {
+        // Don't leave half an SRF behind.
+        try { srf.close(); } catch (IOException e) { }
+        new File(srfFilename).delete();
+      }
+    }
+  }
+
+  // The same, but with the PNG read in one pass from pngIn (a pipe, say, or
+  // standard input) and the SRF written to srfOut, which is closed at the
+  // end.  Nothing is seeked or spooled to a temporary file: the PNG is
+  // decoded as it arrives, a section at a time (or, if it's one PngRowReader
+  // leaves to ImageIO, its compressed data is kept in memory).  On failure
+  // srfOut is closed without the rest of the SRF, so it may hold part of one.
+  public void convert(InputStream pngIn, String infoFilename, WritableByteChannel srfOut,
+                      PhaseTimer timer) throws IOException {
+    PngRowReader rgbReader = null, maskReader = null;
+    SrfWriter srf = null;
+    boolean written = false;
+    try {
+      // At the end of a pipe from Srf2Png, the info file is only there once
+      // the PNG has started, so wait for that first.
+      rgbReader = PngRowReader.open(pngIn, "the PNG data");
+      if (!new File(infoFilename).exists()) {
+        throw new ConversionException("Error: Couldn't find file '" + infoFilename + "'.");
+      }
+      Info info = readInfo(infoFilename, timer);
+      if (info.maskFilename != null) maskReader = PngRowReader.open(info.maskFilename);
+
+      srf = new SrfWriter(srfOut);
+      writeSections(srf, info.layout, rgbReader, maskReader, 0, timer);
+      srf.close();
+      written = true;
+    } finally {
+      if (rgbReader != null) rgbReader.close();
+      if (maskReader != null) maskReader.close();
+      if (!written) {
+        // Whatever's still buffered stays unwritten.
+        if (srf != null) srf.release();
+        srfOut.close();
+      }
     }
-        
-    //
-    // Read the pngbase_info.txt file...
-    //
+  }
+
+  // What an info file says: the section layout, and the mask PNG if there's
+  // a separate one.
+  static class Info {
+    String maskFilename;
+    SectionLayout layout;
+  }
+
+  // Read a pngbase_info.txt file.
+  Info readInfo(String infoFilename, PhaseTimer timer) throws IOException {
+    int i;
     String maskFilename = null;
     int fullImageWidth = 0;
     int fullImageHeight = 0;
-    int sectionNum = 0;
-    BufferedReader infoReader = new BufferedReader(new FileReader(new File(filenames[1])));
+    int sectionCount = 0;
+    // Section number -> size, however many sections there are.
+    HashMap<Integer, Integer> sectionWidths = new HashMap<Integer, Integer>();
+    HashMap<Integer, Integer> sectionHeights = new HashMap<Integer, Integer>();
+    timer.start("info");
+    BufferedReader infoReader = new BufferedReader(new FileReader(new File(infoFilename)));
     try {
       String line,label,value;
       int colonPos;
@@ -104,13 +264,11 @@ public class Png2Srf {
           if (label.equals("Width")) fullImageWidth = safeParseInt(value);
           if (label.equals("Height")) fullImageHeight = safeParseInt(value);
           if (label.equals("SectionCount")) sectionCount = safeParseInt(value);
-          if (label.startsWith("SectionWidth") && label.length() == 13) {
-            sectionNum = safeParseInt(label.substring(12,13));
-            if (sectionNum > 0) sectionWidths[sectionNum - 1] = safeParseInt(value);
+          if (label.startsWith("SectionWidth") && label.length() > 12) {
+            sectionWidths.put(safeParseInt(label.substring(12)), safeParseInt(value));
           }
-          if (label.startsWith("SectionHeight") && label.length() == 14) {
-            sectionNum = safeParseInt(label.substring(13,14));
-            if (sectionNum > 0) sectionHeights[sectionNum - 1] = safeParseInt(value);
+          if (label.startsWith("SectionHeight") && label.length() > 13) {
+            sectionHeights.put(safeParseInt(label.substring(13)), safeParseInt(value));
           }
         }
       }
@@ -119,125 +277,128 @@ public class Png2Srf {
       infoReader.close();
     }
     
-    if (sectionCount == 0) {
-      System.out.println("Error: Info file doesn't contain a valid section count.");
-      return;
+    if (sectionCount <= 0) {
+      throw new ConversionException("Error: Info file doesn't contain a valid section count.");
     }
+    SectionLayout layout = new SectionLayout(sectionCount);
     for (i = 0; i < sectionCount; i++) {
-      if (sectionHeights[i] == 0 || sectionWidths[i] == 0) {
-        System.out.println("Error: Info file doesn't contain valid dimensions for section " + (i+1) + ".");
-        return;
+      Integer w = sectionWidths.get(i + 1);
+      Integer h = sectionHeights.get(i + 1);
+      if (w == null || h == null || w == 0 || h == 0) {
+        throw new ConversionException("Error: Info file doesn't contain valid dimensions for section " + (i+1) + ".");
       } else {
-        System.out.println("Image Section Dimensions: " + sectionWidths[i] + "x" + sectionHeights[i]);
+        log.println("Image Section Dimensions: " + w + "x" + h);
+        layout.setSize(i, w, h);
       }
     }
     
-    int expectedImageWidth = 0;
-    int expectedImageHeight = 0;
-    for (i = 0; i < sectionCount; i++) {
-      if (sectionWidths[i] > expectedImageWidth) expectedImageWidth = sectionWidths[i];
-      expectedImageHeight += sectionHeights[i];
-    }
+    int expectedImageWidth = layout.getFullWidth();
+    int expectedImageHeight = layout.getFullHeight();
     
     if (expectedImageWidth != fullImageWidth || expectedImageHeight != fullImageHeight) {
-      System.out.println("Warning: Image dimensions in image file don't match up.");
+      log.println("Warning: Image dimensions in image file don't match up.");
     }
+    timer.end(new File(infoFilename).length());
 
     if (maskFilename != null) {
-      System.out.println("Converting PNGs to SRF with separate alpha mask.");
-      rgbImage = ImageIO.read(new FileInputStream(filenames[0]));
-      maskImage = ImageIO.read(new FileInputStream(maskFilename));
+      log.println("Converting PNGs to SRF with separate alpha mask.");
     } else {
-      System.out.println("Converting PNG to SRF.");
-      rgbImage = ImageIO.read(new FileInputStream(filenames[0]));
+      log.println("Converting PNG to SRF.");
     }
-    
-    if (rgbImage.getWidth() < expectedImageWidth || rgbImage.getHeight() < expectedImageHeight) {
-      System.out.println("PNG file is too small to contain all image sections.");
-      return;
+    Info info = new Info();
+    info.maskFilename = maskFilename;
+    info.layout = layout;
+    return info;
+  }
+
+  // Read the PNG(s) a section at a time, top to bottom, and write the whole
+  // SRF, footer and all.  pngBytes is the PNGs' size, for the timer.
+  void writeSections(SrfWriter srf, SectionLayout layout, PngRowReader rgbReader, PngRowReader maskReader,
+                     long pngBytes, PhaseTimer timer) throws IOException {
+    int expectedImageWidth = layout.getFullWidth();
+    int expectedImageHeight = layout.getFullHeight();
+    if (rgbReader.getWidth() < expectedImageWidth || rgbReader.getHeight() < expectedImageHeight) {
+      throw new ConversionException("PNG file is too small to contain all image sections.");
     }
-    
-    if (maskImage != null && maskImage.getWidth() < expectedImageWidth && maskImage.getHeight() < expectedImageHeight) {
-      System.out.println("Mask file is too small to contain all image sections.");
-      return;
+    if (maskReader != null) {
+      if (maskReader.getWidth() < expectedImageWidth || maskReader.getHeight() < expectedImageHeight) {
+        throw new ConversionException("Mask file is too small to contain all image sections.");
+      }
     }
-    
-    FileOutputStream srf = new FileOutputStream(srfFilename);
-    writeSRFHeader(srf);
-    int curYPos = 0;
-    for (i = 0; i < sectionCount; i++) {
-      writeImageSection(srf, i, curYPos);
-      curYPos += sectionHeights[i];
+
+    writeSRFHeader(srf, layout);
+    for (int i = 0; i < layout.getSectionCount(); i++) {
+      int w = layout.getWidth(i), h = layout.getHeight(i), y = layout.getY(i);
+
+      timer.start("png");
+      BufferedImage rgbImage = rgbReader.readRows(y, w, h);
+      BufferedImage maskImage = maskReader != null ? maskReader.readRows(y, w, h) : null;
+      timer.end(i == 0 ? pngBytes : 0);
+
+      timer.start("encode");
+      SectionEncoder.Planes planes = SectionEncoder.encodeSection(rgbImage, maskImage, w, h, 0);
+      BufferPool.SHARED.give(rgbImage);
+      if (maskImage != null) BufferPool.SHARED.give(maskImage);
+      timer.end(planes.getLength());
+
+      timer.start("write");
+      writeImageSection(srf, w, h, planes);
+      planes.release();
+      timer.end(0);
+    }
+    timer.start("write");
+    writeSRFFooter(srf);
+    timer.end(srf.getBytesWritten());
+  }
+
+  // Write a whole SRF: header, every section of the layout, and footer.
+  // maskImage is null unless the alpha comes from a separate mask PNG.  The
+  // sections are all encoded in parallel first (see SectionEncoder), then
+  // written out in order.
+  public void writeSrf(SrfWriter srf, SectionLayout layout, BufferedImage rgbImage, BufferedImage maskImage) throws IOException {
+    writeSrf(srf, layout, SectionEncoder.encodeSections(layout, rgbImage, maskImage));
+  }
+
+  // Write a whole SRF from sections already encoded.
+  public void writeSrf(SrfWriter srf, SectionLayout layout, SectionEncoder.Planes[] planes) throws IOException {
+    writeSRFHeader(srf, layout);
+    for (int i = 0; i < layout.getSectionCount(); i++) {
+      writeImageSection(srf, layout.getWidth(i), layout.getHeight(i), planes[i]);
+      planes[i].release(); // let the encoded planes go as soon as they're written
+      planes[i] = null;
     }
     writeSRFFooter(srf);
-    srf.close();
   }
   
-  public void writeSRFHeader(FileOutputStream srf) throws IOException {
-    srf.write("GARMIN BITMAP 01".getBytes());
-    addBytesToChecksum("GARMIN BITMAP 01".getBytes());
-    writeInt32(srf,4);
-    writeInt32(srf,4);
-    writeInt32(srf,sectionCount);
-    writeInt32(srf,5);
-    writePString(srf,"578");
-    writeInt32(srf,6);
-    writePString(srf,"1.00");
-    writeInt32(srf,7);
-    writePString(srf,"006-D0578-XX");
+  public void writeSRFHeader(SrfWriter srf, SectionLayout layout) throws IOException {
+    srf.writeHeader(layout.getSectionCount());
   }
   
-  public void writeImageSection(FileOutputStream srf, int sectionNum, int yBase) throws IOException {
-    int x,y,a,color;
-    int w = sectionWidths[sectionNum];
-    int h = sectionHeights[sectionNum];
+  // maskImage is null unless the alpha comes from a separate mask PNG.
+  public void writeImageSection(SrfWriter srf, SectionLayout layout, int sectionNum,
+                                BufferedImage rgbImage, BufferedImage maskImage) throws IOException {
+    int w = layout.getWidth(sectionNum);
+    int h = layout.getHeight(sectionNum);
+    SectionEncoder.Planes planes = SectionEncoder.encodeSection(rgbImage, maskImage, w, h, layout.getY(sectionNum));
+    writeImageSection(srf, w, h, planes);
+    planes.release();
+  }
+  
+  public void writeImageSection(SrfWriter srf, int w, int h, SectionEncoder.Planes planes) throws IOException {
     // Image section header.
-    writeInt32(srf,0);
-    writeInt32(srf,16);
-    writeInt32(srf,0);
-    writeInt16(srf,h);
-    writeInt16(srf,w);
-    writeInt16(srf,2064);
-    writeInt16(srf, w * 2);
-    writeInt32(srf,0);
+    srf.writeSectionHeader(w, h);
     
     // Alpha Data
-    writeInt32(srf,11);
-    writeInt32(srf, w * h);
-    for (y = 0; y < h; y++) {
-      for (x = 0; x < w; x++) {
-        if (maskImage != null) {
-          a = maskImage.getRGB(x,y + yBase);
-        } else {
-          a = rgbImage.getRGB(x,y + yBase) >> 24;
-        }
-        a = encodeAlpha(a);
-        srf.write(a);
-        checksum += a;
-      }
-    }
+    srf.writePlaneHeader(SrfWriter.ALPHA_PLANE, w * h);
+    srf.writeSummedBytes(planes.alpha, planes.alphaSum);
     
     // RGB Data
-    writeInt32(srf,1);
-    writeInt32(srf, w * h * 2);
-    for (y = 0; y < h; y++) {
-      for (x = 0; x < w; x++) {
-        color = rgbImage.getRGB(x,y + yBase) & 0xffffff;
-        writeInt16(srf,encodeColor(color));
-      }
-    }
+    srf.writePlaneHeader(SrfWriter.RGB_PLANE, w * h * 2);
+    srf.writeSummedBytes(planes.rgb, planes.rgbSum);
   }
   
-  public void writeSRFFooter(FileOutputStream srf) throws IOException {
-    long bytesWritten = srf.getChannel().position();
-    long bytesToWrite = 255 - (bytesWritten % 256);
-    for (long x = 0; x < bytesToWrite; x++) {
-      srf.write(0xff);
-      checksum += 0xff;
-    }
-    
-    // Write out the checkbyte.
-    srf.write((256 - (checksum & 255)) & 255);
+  public void writeSRFFooter(SrfWriter srf) throws IOException {
+    srf.writeFooter();
   }
 
   public int safeParseInt(String s) {
@@ -269,39 +430,6 @@ public class Png2Srf {
     return i;
   }
 
-  public void addBytesToChecksum(byte[] bytes) {
-    int len = Arrays.asList(bytes).size();
-    for (int i = 0; i < len; i++) {
-      checksum += bytes[i];
-    }
-  }
-
-  // Write a string to file -- one that's prefixed by a 32-bit int with its length.
-  public void writePString(FileOutputStream s, String string) throws IOException {
-    writeInt32(s, string.length());
-    byte[] bytes = string.getBytes();
-    s.write(bytes);
-    addBytesToChecksum(bytes);
-  }
-
-  // Write a little-endian int to the file.
-  public void writeInt32(FileOutputStream s, int i) throws IOException {
-    for (int j = 0; j < 4; j++) {
-      s.write(i & 255);
-      checksum += (i & 255);
-      i >>= 8;
-    }
-  }
-
-  // Write a little-endian short to the file.
-  public void writeInt16(FileOutputStream s, int i) throws IOException {
-    for (int j = 0; j < 2; j++) {
-      s.write(i & 255);
-      checksum += (i & 255);
-      i >>= 8;
-    }
-  }
-  
   // Turn a 16-bit color into a 24-bit one.
   public int decodeColor(byte b1, byte b2) {
     int r,g,b;
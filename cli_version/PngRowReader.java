@@ -0,0 +1,298 @@
+import java.awt.Rectangle;
+import java.awt.color.ColorSpace;
+import java.awt.image.*;
+import java.io.*;
+import java.util.Iterator;
+import java.util.zip.*;
+import javax.imageio.*;
+import javax.imageio.stream.*;
+
+// Reads a PNG top to bottom in one pass, a band of rows at a time, so
+// Png2Srf inflates and unfilters each row once however many sections the
+// sheet has.  (Asking ImageIO for each section as a source region starts it
+// decoding from the first row again every time, which for n sections is
+// about (n+1)/2 times the work.)
+//
+// Only the kind of PNG that PngWriter and most editors write is decoded
+// here: 8-bit gray, gray+alpha, RGB or RGBA, not interlaced, with no color
+// profile (iCCP) or transparent color (tRNS).  Bands come out in the layout
+// ImageIO reads those into, so SectionEncoder treats them the same.  Any
+// other PNG goes to ImageIO after all, a source region per band.
+public class PngRowReader {
+  // How far ahead of the pixel data we'll look before leaving it to ImageIO.
+  static final int MARK_LIMIT = 1024 * 1024;
+  static final int IHDR = 0x49484452, IDAT = 0x49444154, ICCP = 0x69434350, TRNS = 0x74524e53;
+
+  int width, height, colorType, channels;
+  int nextRow = 0;
+
+  // Our own decoding: the zlib stream of the IDAT chunks, the row being
+  // read (filter byte first) and the one before it.
+  DataInputStream in;
+  DataInputStream rows;
+  Inflater inflater;
+  byte[] row, previousRow;
+  ImageTypeSpecifier type;
+
+  // Or ImageIO's.
+  ImageReader reader;
+
+  PngRowReader() {
+  }
+
+  public static PngRowReader open(String filename) throws IOException {
+    if (!new File(filename).exists()) throw new ConversionException("Error: Couldn't find file '" + filename + "'.");
+    BufferedInputStream in = new BufferedInputStream(new FileInputStream(filename), 64 * 1024);
+    PngRowReader png = new PngRowReader();
+    try {
+      if (png.readHeader(in)) return png;
+    } catch (IOException e) {
+      in.close();
+      throw e;
+    }
+    in.close();
+    ImageInputStream file = ImageIO.createImageInputStream(new File(filename));
+    if (file == null) throw new ConversionException("Error: Couldn't read '" + filename + "'.");
+    png.openImageIO(file, "'" + filename + "'");
+    return png;
+  }
+
+  // The same from a stream, which is read no further than the PNG needs
+  // and closed by close().  name is what to call it in errors.
+  public static PngRowReader open(InputStream stream, String name) throws IOException {
+    BufferedInputStream in = new BufferedInputStream(stream, 64 * 1024);
+    PngRowReader png = new PngRowReader();
+    if (!png.readHeader(in)) png.openImageIO(new MemoryCacheImageInputStream(in), name);
+    return png;
+  }
+
+  public int getWidth() { return width; }
+  public int getHeight() { return height; }
+
+  // Rows y to y + h - 1, and columns 0 to w - 1, in an image from the
+  // BufferPool when the layout allows it.  Bands have to be read in order
+  // of y, without overlapping.
+  public BufferedImage readRows(int y, int w, int h) throws IOException {
+    if (y < nextRow) throw new IOException("PNG rows have to be read top to bottom.");
+    if (reader != null) {
+      nextRow = y + h;
+      return readRegion(y, w, h);
+    }
+
+    while (nextRow < y) readRow();
+    BufferedImage band = BufferPool.SHARED.takeImage(type, w, h);
+    byte[] data = ((DataBufferByte)band.getRaster().getDataBuffer()).getData();
+    int stride = ((ComponentSampleModel)band.getSampleModel()).getScanlineStride();
+    for (int i = 0; i < h; i++) {
+      readRow();
+      System.arraycopy(row, 1, data, i * stride, w * channels);
+    }
+    return band;
+  }
+
+  public void close() throws IOException {
+    if (reader != null) {
+      ImageInputStream stream = (ImageInputStream)reader.getInput();
+      reader.dispose();
+      stream.close();
+    } else {
+      inflater.end();
+      in.close();
+    }
+  }
+
+  //
+  // Our own decoding
+  //
+
+  // Read the signature and the chunks ahead of the pixel data, leaving in
+  // at the first IDAT's data.  Returns false, with in back at the start, if
+  // the PNG is one for ImageIO.
+  boolean readHeader(BufferedInputStream stream) throws IOException {
+    stream.mark(MARK_LIMIT);
+    in = new DataInputStream(stream);
+    long read = 8;
+    try {
+      byte[] signature = new byte[8];
+      in.readFully(signature);
+      if (!java.util.Arrays.equals(signature, PngWriter.SIGNATURE)) return reset(stream);
+
+      int bitDepth = 0, interlace = 0;
+      boolean supported = true;
+      while (true) {
+        int length = in.readInt();
+        int chunk = in.readInt();
+        read += 8;
+        if (chunk == IDAT) {
+          if (!supported || bitDepth != 8 || interlace != 0 || colorType == 3) return reset(stream);
+          startRows(length);
+          return true;
+        }
+        if (length < 0 || read + length + 4 > MARK_LIMIT) return reset(stream);
+        if (chunk == IHDR) {
+          width = in.readInt();
+          height = in.readInt();
+          bitDepth = in.readUnsignedByte();
+          colorType = in.readUnsignedByte();
+          skipFully(2); // compression and filter methods, 0 in every PNG
+          interlace = in.readUnsignedByte();
+          skipFully(length - 13 + 4);
+        } else {
+          if (chunk == ICCP || chunk == TRNS) supported = false;
+          skipFully(length + 4);
+        }
+        read += length + 4;
+      }
+    } catch (EOFException e) {
+      // Let ImageIO say what's wrong with it.
+      return reset(stream);
+    }
+  }
+
+  boolean reset(BufferedInputStream stream) throws IOException {
+    stream.reset();
+    return false;
+  }
+
+  void skipFully(int n) throws IOException {
+    while (n > 0) {
+      int skipped = in.skipBytes(n);
+      if (skipped <= 0) throw new EOFException();
+      n -= skipped;
+    }
+  }
+
+  void startRows(int firstIdatLength) throws IOException {
+    ColorSpace sRGB = ColorSpace.getInstance(ColorSpace.CS_sRGB);
+    if (colorType == 0) {
+      channels = 1;
+      type = ImageTypeSpecifier.createGrayscale(8, DataBuffer.TYPE_BYTE, false);
+    } else if (colorType == 4) {
+      channels = 2;
+      type = ImageTypeSpecifier.createGrayscale(8, DataBuffer.TYPE_BYTE, false, false);
+    } else if (colorType == 2) {
+      channels = 3;
+      type = ImageTypeSpecifier.createInterleaved(sRGB, new int[] { 0, 1, 2 }, DataBuffer.TYPE_BYTE, false, false);
+    } else if (colorType == 6) {
+      channels = 4;
+      type = ImageTypeSpecifier.createInterleaved(sRGB, new int[] { 0, 1, 2, 3 }, DataBuffer.TYPE_BYTE, true, false);
+    } else {
+      throw new ConversionException("Error: Bad PNG color type " + colorType + ".");
+    }
+    if (width <= 0 || height <= 0 || (long)width * channels + 1 > Integer.MAX_VALUE - 8) {
+      throw new ConversionException("Error: Bad PNG size " + width + "x" + height + ".");
+    }
+    row = new byte[width * channels + 1];
+    previousRow = new byte[row.length];
+    inflater = new Inflater();
+    rows = new DataInputStream(new InflaterInputStream(new IdatStream(firstIdatLength), inflater, 64 * 1024));
+  }
+
+  // Inflate and unfilter the next row into row, keeping the last one in
+  // previousRow.
+  void readRow() throws IOException {
+    nextRow += 1;
+    byte[] swap = previousRow;
+    previousRow = row;
+    row = swap;
+    try {
+      rows.readFully(row);
+    } catch (EOFException e) {
+      throw new ConversionException("Error: PNG data ends early.");
+    }
+
+    int bpp = channels;
+    int n = row.length;
+    byte[] up = previousRow;
+    switch (row[0]) {
+      case 0:
+        break;
+      case 1:
+        for (int i = 1 + bpp; i < n; i++) row[i] += row[i - bpp];
+        break;
+      case 2:
+        for (int i = 1; i < n; i++) row[i] += up[i];
+        break;
+      case 3:
+        for (int i = 1; i < n; i++) {
+          int left = i > bpp ? row[i - bpp] & 255 : 0;
+          row[i] += (left + (up[i] & 255)) >> 1;
+        }
+        break;
+      case 4:
+        for (int i = 1; i < n; i++) {
+          int a = i > bpp ? row[i - bpp] & 255 : 0;
+          int b = up[i] & 255;
+          int c = i > bpp ? up[i - bpp] & 255 : 0;
+          int p = a + b - c;
+          int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+          row[i] += (pa <= pb && pa <= pc) ? a : (pb <= pc) ? b : c;
+        }
+        break;
+      default:
+        throw new ConversionException("Error: Bad PNG row filter " + row[0] + ".");
+    }
+  }
+
+  // The data of consecutive IDAT chunks as one stream, ending at the first
+  // chunk that isn't one.
+  class IdatStream extends InputStream {
+    int remaining;
+    boolean done = false;
+
+    IdatStream(int firstLength) {
+      remaining = firstLength;
+    }
+
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) < 0 ? -1 : b[0] & 255;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+      while (remaining == 0) {
+        if (done) return -1;
+        skipFully(4); // CRC
+        remaining = in.readInt();
+        if (in.readInt() != IDAT) {
+          done = true;
+          remaining = 0;
+          return -1;
+        }
+      }
+      int n = in.read(b, off, Math.min(len, remaining));
+      if (n < 0) throw new EOFException();
+      remaining -= n;
+      return n;
+    }
+  }
+
+  //
+  // ImageIO's decoding
+  //
+
+  void openImageIO(ImageInputStream stream, String name) throws IOException {
+    Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+    if (!readers.hasNext()) {
+      stream.close();
+      throw new ConversionException("Error: " + name + " isn't a PNG.");
+    }
+    reader = readers.next();
+    // Not forward-only, so the reader can go back to the start of the pixel
+    // data for each band.
+    reader.setInput(stream, false, true);
+    width = reader.getWidth(0);
+    height = reader.getHeight(0);
+  }
+
+  // Rows y to y + h - 1, and columns 0 to w - 1, in the PNG's own pixel
+  // layout, read into an image from the BufferPool when that layout allows.
+  BufferedImage readRegion(int y, int w, int h) throws IOException {
+    ImageReadParam param = reader.getDefaultReadParam();
+    param.setSourceRegion(new Rectangle(0, y, w, h));
+    ImageTypeSpecifier raw = reader.getRawImageType(0);
+    BufferedImage destination = raw != null ? BufferPool.SHARED.takeImage(raw, w, h) : null;
+    if (destination != null) param.setDestination(destination);
+    return reader.read(0, param);
+  }
+}
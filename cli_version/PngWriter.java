@@ -0,0 +1,380 @@
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+// Writes a PNG a row at a time, so an image never has to exist in memory all
+// at once.  Only 8-bit gray, RGB and RGBA are supported, which covers what
+// Srf2Png writes.
+//
+// By default rows are filtered the way ImageIO's PNG writer does it (each row
+// gets whichever of the five filters gives the smallest sum of absolute
+// differences) and deflated at ImageIO's level, 4.  Both can be changed:
+// level 0 just stores the data, 1 is fastest, 9 smallest, and a fixed filter
+// (or none) skips trying all five.
+//
+// With parallel set, rows are collected into blocks of about BLOCK_SIZE bytes
+// that are filtered and compressed on the fork-join pool, a few blocks per
+// core at a time, and written out in order (the same idea as pigz).  Each
+// block is a run of raw deflate blocks ending on a byte boundary, so they
+// simply join up into one zlib stream; the Adler-32 checksums of the blocks
+// are combined at the end.  Blocks don't share a dictionary, which costs a
+// little compression at the seams.
+public class PngWriter {
+  public static final int GRAY = 0;
+  public static final int RGB = 2;
+  public static final int RGBA = 6;
+
+  // Filter strategies: one of the five PNG filter types for every row, or
+  // ADAPTIVE to pick per row.
+  public static final int ADAPTIVE = -1;
+  public static final int NONE = 0;
+  public static final int SUB = 1;
+  public static final int UP = 2;
+  public static final int AVERAGE = 3;
+  public static final int PAETH = 4;
+  static final String[] FILTER_NAMES = { "none", "sub", "up", "average", "paeth" };
+
+  static final byte[] SIGNATURE = { (byte)137, 80, 78, 71, 13, 10, 26, 10 };
+  static final int CHUNK_SIZE = 32 * 1024;
+  static final int BLOCK_SIZE = 256 * 1024;
+  public static final int DEFAULT_LEVEL = 4; // same as ImageIO's
+
+  OutputStream out;
+  int width, height, colorType, bytesPerPixel, rowBytes;
+  int level, filterType;
+  int rowsWritten = 0;
+  byte[] row, previousRow, filtered;
+  RowFilter filter;
+  Deflater deflater;
+  DeflaterOutputStream idat;
+
+  // Parallel mode: the block being filled, the raw row before it, and the
+  // blocks still being compressed, oldest first.
+  boolean parallel;
+  int rowsPerBlock, blockRows = 0, maxPending;
+  byte[] block, blockPreviousRow;
+  ArrayDeque<CompressBlock> pending = new ArrayDeque<CompressBlock>();
+  long adler = 1;
+
+  public PngWriter(OutputStream out, int width, int height, int colorType) throws IOException {
+    this(out, width, height, colorType, DEFAULT_LEVEL, ADAPTIVE, false);
+  }
+
+  public PngWriter(OutputStream out, int width, int height, int colorType,
+                   int level, int filterType, boolean parallel) throws IOException {
+    this.out = out;
+    this.width = width;
+    this.height = height;
+    this.colorType = colorType;
+    this.level = level;
+    this.filterType = filterType;
+    this.parallel = parallel;
+    bytesPerPixel = (colorType == GRAY) ? 1 : (colorType == RGB) ? 3 : 4;
+    rowBytes = width * bytesPerPixel;
+    filter = new RowFilter(rowBytes, bytesPerPixel, filterType);
+
+    out.write(SIGNATURE);
+    ByteArrayOutputStream ihdr = new ByteArrayOutputStream(13);
+    DataOutputStream header = new DataOutputStream(ihdr);
+    header.writeInt(width);
+    header.writeInt(height);
+    header.writeByte(8); // bit depth
+    header.writeByte(colorType);
+    header.writeByte(0); // deflate
+    header.writeByte(0); // adaptive filtering
+    header.writeByte(0); // no interlace
+    writeChunk("IHDR", ihdr.toByteArray(), 0, 13);
+
+    if (parallel) {
+      rowsPerBlock = Math.max(1, BLOCK_SIZE / Math.max(1, rowBytes));
+      block = new byte[rowsPerBlock * rowBytes];
+      maxPending = 2 * Runtime.getRuntime().availableProcessors();
+      writeChunk("IDAT", zlibHeader(level), 0, 2);
+    } else {
+      row = new byte[rowBytes];
+      previousRow = new byte[rowBytes];
+      filtered = new byte[rowBytes + 1];
+      deflater = new Deflater(level);
+      idat = new DeflaterOutputStream(new IdatOutputStream(), deflater, CHUNK_SIZE);
+    }
+  }
+
+  // Write a whole image: TYPE_BYTE_GRAY as a gray PNG, anything else as RGB
+  // or RGBA depending on whether it has alpha.  Doesn't close out.
+  public static void write(BufferedImage image, OutputStream out, int level, int filterType,
+                           boolean parallel) throws IOException {
+    int width = image.getWidth(), height = image.getHeight();
+    if (image.getType() == BufferedImage.TYPE_BYTE_GRAY) {
+      PngWriter png = new PngWriter(out, width, height, GRAY, level, filterType, parallel);
+      byte[] row = new byte[width];
+      for (int y = 0; y < height; y++) {
+        image.getRaster().getDataElements(0, y, width, 1, row);
+        png.writeRow(row, 0);
+      }
+      png.finish();
+    } else {
+      PngWriter png = new PngWriter(out, width, height, image.getColorModel().hasAlpha() ? RGBA : RGB,
+                                    level, filterType, parallel);
+      int[] row = new int[width];
+      for (int y = 0; y < height; y++) {
+        image.getRGB(0, y, width, 1, row, 0, width);
+        png.writeRow(row, 0);
+      }
+      png.finish();
+    }
+  }
+
+  // The filter strategy called name ("adaptive", "none", "sub", "up",
+  // "average" or "paeth"), or -2 if there isn't one.
+  public static int parseFilter(String name) {
+    if (name.equalsIgnoreCase("adaptive")) return ADAPTIVE;
+    for (int i = 0; i < FILTER_NAMES.length; i++) {
+      if (FILTER_NAMES[i].equalsIgnoreCase(name)) return i;
+    }
+    return -2;
+  }
+
+  // Write the next row from ARGB (or RGB, for an RGB PNG) ints.
+  public void writeRow(int[] pixels, int offset) throws IOException {
+    byte[] dst = nextRow();
+    int p = parallel ? blockRows * rowBytes : 0;
+    for (int i = 0; i < width; i++) {
+      int c = pixels[offset + i];
+      dst[p++] = (byte)(c >> 16);
+      dst[p++] = (byte)(c >> 8);
+      dst[p++] = (byte)c;
+      if (colorType == RGBA) dst[p++] = (byte)(c >>> 24);
+    }
+    rowDone();
+  }
+
+  // Write the next row of a gray PNG.
+  public void writeRow(byte[] gray, int offset) throws IOException {
+    System.arraycopy(gray, offset, nextRow(), parallel ? blockRows * rowBytes : 0, width);
+    rowDone();
+  }
+
+  // Where the next row's raw bytes go.
+  byte[] nextRow() {
+    return parallel ? block : row;
+  }
+
+  void rowDone() throws IOException {
+    if (rowsWritten >= height) throw new IOException("PNG has only " + height + " rows.");
+    rowsWritten += 1;
+    if (!parallel) {
+      filter.filter(row, 0, rowsWritten > 1 ? previousRow : null, 0, filtered);
+      idat.write(filtered, 0, filtered.length);
+      byte[] swap = previousRow;
+      previousRow = row;
+      row = swap;
+      return;
+    }
+
+    blockRows += 1;
+    if (blockRows == rowsPerBlock || rowsWritten == height) {
+      startBlock(rowsWritten == height);
+    }
+  }
+
+  // Hand the filled block to the pool, first writing out finished blocks
+  // if too many are waiting.
+  void startBlock(boolean last) throws IOException {
+    CompressBlock task = new CompressBlock(block, blockRows, blockPreviousRow, last);
+    task.fork();
+    pending.addLast(task);
+
+    // The next block filters its first row against this one's last.
+    blockPreviousRow = new byte[rowBytes];
+    System.arraycopy(block, (blockRows - 1) * rowBytes, blockPreviousRow, 0, rowBytes);
+    block = new byte[rowsPerBlock * rowBytes];
+    blockRows = 0;
+
+    while (pending.size() > maxPending) writeBlock(pending.removeFirst());
+  }
+
+  void writeBlock(CompressBlock task) throws IOException {
+    task.join();
+    writeChunk("IDAT", task.compressed, 0, task.compressedLength);
+    adler = combineAdler(adler, task.adler, task.filteredLength);
+  }
+
+  // Finish the image data and write the trailing chunk.  Doesn't close out.
+  public void finish() throws IOException {
+    if (rowsWritten != height) throw new IOException("PNG got " + rowsWritten + " of " + height + " rows.");
+    if (parallel) {
+      while (!pending.isEmpty()) writeBlock(pending.removeFirst());
+      byte[] trailer = { (byte)(adler >>> 24), (byte)(adler >>> 16), (byte)(adler >>> 8), (byte)adler };
+      writeChunk("IDAT", trailer, 0, 4);
+    } else {
+      idat.finish();
+      deflater.end();
+    }
+    writeChunk("IEND", new byte[0], 0, 0);
+    out.flush();
+  }
+
+  void writeChunk(String type, byte[] data, int offset, int length) throws IOException {
+    byte[] typeBytes = type.getBytes("US-ASCII");
+    CRC32 crc = new CRC32();
+    crc.update(typeBytes);
+    crc.update(data, offset, length);
+    DataOutputStream chunk = new DataOutputStream(out);
+    chunk.writeInt(length);
+    chunk.write(typeBytes);
+    chunk.write(data, offset, length);
+    chunk.writeInt((int)crc.getValue());
+  }
+
+  // The two bytes java.util.zip.Deflater would start a zlib stream with.
+  static byte[] zlibHeader(int level) {
+    int cmf = 0x78; // deflate, 32K window
+    if (level < 0) level = 6; // Deflater.DEFAULT_COMPRESSION
+    int flevel = (level < 2) ? 0 : (level < 6) ? 1 : (level == 6) ? 2 : 3;
+    int flg = flevel << 6;
+    flg += 31 - ((cmf << 8) + flg) % 31;
+    return new byte[] { (byte)cmf, (byte)flg };
+  }
+
+  // Adler-32 of two pieces of data joined together, from each one's Adler-32
+  // and the second's length (zlib's adler32_combine).
+  static long combineAdler(long adler1, long adler2, long length2) {
+    final long BASE = 65521;
+    long rem = length2 % BASE;
+    long sum1 = adler1 & 0xffff;
+    long sum2 = (rem * sum1) % BASE;
+    sum1 += (adler2 & 0xffff) + BASE - 1;
+    sum2 += ((adler1 >>> 16) & 0xffff) + ((adler2 >>> 16) & 0xffff) + BASE - rem;
+    if (sum1 >= BASE) sum1 -= BASE;
+    if (sum1 >= BASE) sum1 -= BASE;
+    if (sum2 >= (BASE << 1)) sum2 -= (BASE << 1);
+    if (sum2 >= BASE) sum2 -= BASE;
+    return sum1 | (sum2 << 16);
+  }
+
+  // Filters a row of raw bytes into a filter type byte plus filtered bytes.
+  static class RowFilter {
+    int rowBytes, bytesPerPixel, filterType;
+
+    RowFilter(int rowBytes, int bytesPerPixel, int filterType) {
+      this.rowBytes = rowBytes;
+      this.bytesPerPixel = bytesPerPixel;
+      this.filterType = filterType;
+    }
+
+    // Filter the row at raw[rawPos] into dst (rowBytes + 1 bytes).  prev
+    // holds the row above at prevPos, or is null for the first row.
+    void filter(byte[] raw, int rawPos, byte[] prev, int prevPos, byte[] dst) {
+      int type = filterType;
+      if (type == ADAPTIVE) {
+        long bestSum = Long.MAX_VALUE;
+        for (int t = 0; t < 5; t++) {
+          long sum = 0;
+          for (int i = 0; i < rowBytes; i++) {
+            sum += Math.abs((byte)filterByte(t, raw, rawPos, prev, prevPos, i));
+          }
+          if (sum < bestSum) {
+            bestSum = sum;
+            type = t;
+          }
+        }
+      }
+      dst[0] = (byte)type;
+      for (int i = 0; i < rowBytes; i++) {
+        dst[i + 1] = (byte)filterByte(type, raw, rawPos, prev, prevPos, i);
+      }
+    }
+
+    int filterByte(int type, byte[] raw, int rawPos, byte[] prev, int prevPos, int i) {
+      int x = raw[rawPos + i] & 255;
+      if (type == NONE) return x;
+      int a = i >= bytesPerPixel ? raw[rawPos + i - bytesPerPixel] & 255 : 0;
+      int b = prev != null ? prev[prevPos + i] & 255 : 0;
+      int c = (i >= bytesPerPixel && prev != null) ? prev[prevPos + i - bytesPerPixel] & 255 : 0;
+      switch (type) {
+        case SUB: return x - a;
+        case UP: return x - b;
+        case AVERAGE: return x - ((a + b) >> 1);
+        default: return x - paeth(a, b, c);
+      }
+    }
+  }
+
+  static int paeth(int a, int b, int c) {
+    int p = a + b - c;
+    int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+    if (pa <= pb && pa <= pc) return a;
+    if (pb <= pc) return b;
+    return c;
+  }
+
+  // Filters and deflates one block of rows on the pool.  previousRow is the
+  // raw row above the block, or null for the first block.
+  @SuppressWarnings("serial")
+  class CompressBlock extends RecursiveAction {
+    byte[] rows, previousRow;
+    int rowCount;
+    boolean last;
+    byte[] compressed;
+    int compressedLength, filteredLength;
+    long adler;
+
+    CompressBlock(byte[] rows, int rowCount, byte[] previousRow, boolean last) {
+      this.rows = rows;
+      this.rowCount = rowCount;
+      this.previousRow = previousRow;
+      this.last = last;
+    }
+
+    protected void compute() {
+      byte[] data = new byte[rowCount * (rowBytes + 1)];
+      byte[] line = new byte[rowBytes + 1];
+      for (int r = 0; r < rowCount; r++) {
+        if (r == 0) {
+          filter.filter(rows, 0, previousRow, 0, line);
+        } else {
+          filter.filter(rows, r * rowBytes, rows, (r - 1) * rowBytes, line);
+        }
+        System.arraycopy(line, 0, data, r * (rowBytes + 1), rowBytes + 1);
+      }
+      rows = null;
+      filteredLength = data.length;
+      Adler32 checksum = new Adler32();
+      checksum.update(data, 0, data.length);
+      adler = checksum.getValue();
+
+      Deflater deflater = new Deflater(level, true);
+      deflater.setInput(data);
+      compressed = new byte[data.length / 2 + 64];
+      compressedLength = 0;
+      if (last) deflater.finish();
+      while (true) {
+        if (compressedLength == compressed.length) {
+          byte[] bigger = new byte[compressed.length * 2];
+          System.arraycopy(compressed, 0, bigger, 0, compressedLength);
+          compressed = bigger;
+        }
+        int space = compressed.length - compressedLength;
+        int n = deflater.deflate(compressed, compressedLength, space,
+                                 last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+        compressedLength += n;
+        // A sync flush is complete once it leaves room to spare.
+        if (last ? deflater.finished() : n < space) break;
+      }
+      deflater.end();
+    }
+  }
+
+  // Turns compressed data into IDAT chunks.
+  class IdatOutputStream extends OutputStream {
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte)b }, 0, 1);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (len > 0) writeChunk("IDAT", b, off, len);
+    }
+  }
+}
@@ -0,0 +1,162 @@
+import java.awt.image.*;
+import java.io.IOException;
+import java.nio.*;
+import java.util.concurrent.*;
+
+// Decodes SRF image sections straight into the backing arrays of the images
+// Srf2Png builds, a scanline at a time, instead of going through setRGB (and
+// the image's ColorModel) for every pixel.
+//
+// The images must be the ones Srf2Png creates: TYPE_INT_ARGB on its own, or
+// TYPE_INT_RGB plus a TYPE_BYTE_GRAY mask.  Anything else falls back to setRGB.
+//
+// Big sections are split into bands of rows that are decoded in parallel on
+// the fork-join pool, the same way SectionEncoder splits them.
+public class SectionDecoder {
+  // Decode one section's alpha and RGB planes into the image(s) at row yBase.
+  // The planes are read with absolute gets from index 0, rgb as little-endian
+  // shorts (see SrfReader.Section).  Pass a null maskImage to write alpha into
+  // rgbImage (TYPE_INT_ARGB).
+  public static void decodeSection(ByteBuffer alpha, ByteBuffer rgb, int width, int height,
+                                   BufferedImage rgbImage, BufferedImage maskImage, int yBase) {
+    if (!canDecodeDirectly(rgbImage, maskImage)) {
+      decodeSectionSlowly(alpha, rgb, width, height, rgbImage, maskImage, yBase);
+      return;
+    }
+
+    int[] pixels = ((DataBufferInt)rgbImage.getRaster().getDataBuffer()).getData();
+    int pixelStride = ((SinglePixelPackedSampleModel)rgbImage.getSampleModel()).getScanlineStride();
+    byte[] mask = null;
+    int maskStride = 0;
+    if (maskImage != null) {
+      mask = ((DataBufferByte)maskImage.getRaster().getDataBuffer()).getData();
+      maskStride = ((ComponentSampleModel)maskImage.getSampleModel()).getScanlineStride();
+    }
+
+    // Our own views, so the kernels can move their positions freely.
+    ByteBuffer alphaPlane = alpha.duplicate();
+    ShortBuffer rgbPlane = rgb.duplicate().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+    new DecodeBand(alphaPlane, rgbPlane, width, 0, height, pixels, pixelStride, mask, maskStride, yBase).invoke();
+  }
+
+  // Decode every section into the image(s) at once, each on the fork-join
+  // pool, stacked as the layout says.
+  public static void decodeSections(final SrfReader.Section[] sections, final SectionLayout layout,
+                                    final BufferedImage rgbImage, final BufferedImage maskImage) {
+    RecursiveAction[] tasks = new RecursiveAction[sections.length];
+    for (int i = 0; i < sections.length; i++) {
+      final int n = i;
+      tasks[i] = new RecursiveAction() {
+        protected void compute() {
+          SrfReader.Section section = sections[n];
+          decodeSection(section.getAlpha(), section.getRgb(), section.getWidth(), section.getHeight(),
+                        rgbImage, maskImage, layout.getY(n));
+        }
+      };
+    }
+    ForkJoinTask.invokeAll(tasks);
+  }
+
+  // Rows y0 (inclusive) to y1 (exclusive) of one section.  Bands write to
+  // separate rows of the images' arrays, so they can run side by side.
+  @SuppressWarnings("serial")
+  static class DecodeBand extends RecursiveAction {
+    ByteBuffer alphaPlane;
+    ShortBuffer rgbPlane;
+    int width, y0, y1, pixelStride, maskStride, yBase;
+    int[] pixels;
+    byte[] mask;
+
+    DecodeBand(ByteBuffer alphaPlane, ShortBuffer rgbPlane, int width, int y0, int y1,
+               int[] pixels, int pixelStride, byte[] mask, int maskStride, int yBase) {
+      this.alphaPlane = alphaPlane;
+      this.rgbPlane = rgbPlane;
+      this.width = width;
+      this.y0 = y0;
+      this.y1 = y1;
+      this.pixels = pixels;
+      this.pixelStride = pixelStride;
+      this.mask = mask;
+      this.maskStride = maskStride;
+      this.yBase = yBase;
+    }
+
+    protected void compute() {
+      if (y1 - y0 > 1 && (long)(y1 - y0) * width > SectionEncoder.BAND_PIXELS) {
+        int mid = (y0 + y1) >>> 1;
+        invokeAll(new DecodeBand(alphaPlane, rgbPlane, width, y0, mid, pixels, pixelStride, mask, maskStride, yBase),
+                  new DecodeBand(alphaPlane, rgbPlane, width, mid, y1, pixels, pixelStride, mask, maskStride, yBase));
+        return;
+      }
+
+      PixelKernels kernels = PixelKernels.get();
+      int y, pos = y0 * width;
+      for (y = y0; y < y1; y++) {
+        int row = yBase + y;
+        if (mask == null) {
+          kernels.decodeArgb(alphaPlane, rgbPlane, pos, pixels, row * pixelStride, width);
+        } else {
+          kernels.decodeRgb(rgbPlane, pos, pixels, row * pixelStride, width);
+          kernels.decodeMask(alphaPlane, pos, mask, row * maskStride, width);
+        }
+        pos += width;
+      }
+    }
+  }
+
+  // Decode a whole SRF into one TYPE_INT_ARGB image, its sections stacked
+  // as in the PNG Srf2Png would write.  This is what the GUI shows.
+  public static BufferedImage decodeImage(SrfReader srf) throws IOException {
+    SectionLayout layout = srf.getLayout();
+    BufferedImage image = new BufferedImage(layout.getFullWidth(), layout.getFullHeight(),
+                                            BufferedImage.TYPE_INT_ARGB);
+    SrfReader.Section[] sections = new SrfReader.Section[layout.getSectionCount()];
+    for (int i = 0; i < sections.length; i++) sections[i] = srf.readSection(i);
+    decodeSections(sections, layout, image, null);
+    return image;
+  }
+
+  // Decode one section into an image of its own.
+  public static BufferedImage decodeImage(SrfReader.Section section) {
+    BufferedImage image = new BufferedImage(section.getWidth(), section.getHeight(),
+                                            BufferedImage.TYPE_INT_ARGB);
+    decodeSection(section.getAlpha(), section.getRgb(), section.getWidth(), section.getHeight(),
+                  image, null, 0);
+    return image;
+  }
+
+  // One section's pixels as ARGB ints, width per row, top row first.
+  public static int[] decodePixels(SrfReader.Section section) {
+    int width = section.getWidth();
+    int[] pixels = new int[width * section.getHeight()];
+    ByteBuffer alphaPlane = section.getAlpha().duplicate();
+    ShortBuffer rgbPlane = section.getRgb().duplicate().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+    PixelKernels.get().decodeArgb(alphaPlane, rgbPlane, 0, pixels, 0, pixels.length);
+    return pixels;
+  }
+
+  static boolean canDecodeDirectly(BufferedImage rgbImage, BufferedImage maskImage) {
+    if (maskImage == null) return rgbImage.getType() == BufferedImage.TYPE_INT_ARGB;
+    return rgbImage.getType() == BufferedImage.TYPE_INT_RGB &&
+           maskImage.getType() == BufferedImage.TYPE_BYTE_GRAY;
+  }
+
+  // The old per-pixel path, for image types we don't know the layout of.
+  static void decodeSectionSlowly(ByteBuffer alpha, ByteBuffer rgb, int width, int height,
+                                  BufferedImage rgbImage, BufferedImage maskImage, int yBase) {
+    int x, y, a, color, pos = 0;
+    for (y = 0; y < height; y++) {
+      for (x = 0; x < width; x++) {
+        a = PixelKernels.ALPHA[alpha.get(pos) & 255];
+        color = PixelKernels.decodeColor(rgb.getShort(pos << 1) & 0xffff);
+        if (maskImage != null) {
+          rgbImage.setRGB(x, yBase + y, color);
+          maskImage.setRGB(x, yBase + y, (a << 16) + (a << 8) + a);
+        } else {
+          rgbImage.setRGB(x, yBase + y, (a << 24) + color);
+        }
+        pos += 1;
+      }
+    }
+  }
+}
@@ -0,0 +1,249 @@
+import java.awt.color.ColorSpace;
+import java.awt.image.*;
+import java.nio.*;
+import java.util.concurrent.*;
+
+// Encodes image sections into SRF alpha and RGB planes in memory, ready for
+// SrfWriter.writeSummedBytes().  encodeSections() encodes all of a layout's
+// sections at the same time, from one whole image (SrfCodec, the server's
+// data requests).  encodeSection() does one section, for callers that have
+// just that section's rows in memory and go through them in order, as
+// Png2Srf's file and stream conversions do: there only the bands within the
+// section run side by side.  Either way, big sections are split into bands
+// of rows, all on the fork-join pool (the common pool, or SrfBatch's when
+// called from one of its tasks).
+//
+// Each band sums the bytes it produced, and the sums are added up as the
+// bands finish, so the file's checksum doesn't need another pass over the
+// planes.  The bytes themselves are exactly what the sequential loop wrote.
+//
+// Images with 8-bit samples interleaved in a byte array (what ImageIO gives
+// for most PNGs) are encoded straight from their rasters, alpha, color and
+// sums in one pass per pixel.  Anything else goes a row at a time through
+// getRGB() and the PixelKernels.
+public class SectionEncoder {
+  // Bands are split in half until they're no bigger than this many pixels.
+  static final int BAND_PIXELS = 64 * 1024;
+
+  // One encoded section: width*height alpha bytes and width*height
+  // little-endian RGB565 colors, with the byte sum of each.  The planes are
+  // direct buffers from the BufferPool, between position 0 and their limit;
+  // release() them once they're written.
+  public static class Planes {
+    ByteBuffer alpha, rgb;
+    int alphaSum, rgbSum;
+
+    public int getLength() { return alpha.limit() + rgb.limit(); }
+
+    public void release() {
+      BufferPool.SHARED.give(alpha);
+      BufferPool.SHARED.give(rgb);
+      alpha = rgb = null;
+    }
+  }
+
+  // Encode every section of the layout from the image(s).  Pass a null
+  // maskImage to take the alpha from rgbImage.
+  public static Planes[] encodeSections(SectionLayout layout, BufferedImage rgbImage, BufferedImage maskImage) {
+    int count = layout.getSectionCount();
+    Planes[] planes = new Planes[count];
+    EncodeBand[] tasks = new EncodeBand[count];
+    for (int i = 0; i < count; i++) {
+      planes[i] = newPlanes(layout.getWidth(i), layout.getHeight(i));
+      tasks[i] = new EncodeBand(planes[i], rgbImage, maskImage, layout.getWidth(i),
+                                layout.getY(i), 0, layout.getHeight(i));
+    }
+    ForkJoinTask.invokeAll(tasks);
+    for (int i = 0; i < count; i++) {
+      planes[i].alphaSum = tasks[i].alphaSum;
+      planes[i].rgbSum = tasks[i].rgbSum;
+    }
+    return planes;
+  }
+
+  // Encode the section of the given size starting at row yBase.
+  public static Planes encodeSection(BufferedImage rgbImage, BufferedImage maskImage,
+                                     int width, int height, int yBase) {
+    Planes planes = newPlanes(width, height);
+    EncodeBand task = new EncodeBand(planes, rgbImage, maskImage, width, yBase, 0, height);
+    task.invoke();
+    planes.alphaSum = task.alphaSum;
+    planes.rgbSum = task.rgbSum;
+    return planes;
+  }
+
+  static Planes newPlanes(int width, int height) {
+    Planes planes = new Planes();
+    planes.alpha = BufferPool.SHARED.takeDirect(width * height);
+    planes.rgb = BufferPool.SHARED.takeDirect(width * height * 2);
+    return planes;
+  }
+
+  // Rows y0 (inclusive) to y1 (exclusive) of one section.
+  @SuppressWarnings("serial")
+  static class EncodeBand extends RecursiveAction {
+    Planes planes;
+    BufferedImage rgbImage, maskImage;
+    int width, yBase, y0, y1;
+    int alphaSum = 0, rgbSum = 0;
+
+    EncodeBand(Planes planes, BufferedImage rgbImage, BufferedImage maskImage,
+               int width, int yBase, int y0, int y1) {
+      this.planes = planes;
+      this.rgbImage = rgbImage;
+      this.maskImage = maskImage;
+      this.width = width;
+      this.yBase = yBase;
+      this.y0 = y0;
+      this.y1 = y1;
+    }
+
+    protected void compute() {
+      if (y1 - y0 > 1 && (long)(y1 - y0) * width > BAND_PIXELS) {
+        int mid = (y0 + y1) >>> 1;
+        EncodeBand top = new EncodeBand(planes, rgbImage, maskImage, width, yBase, y0, mid);
+        EncodeBand bottom = new EncodeBand(planes, rgbImage, maskImage, width, yBase, mid, y1);
+        invokeAll(top, bottom);
+        alphaSum = top.alphaSum + bottom.alphaSum;
+        rgbSum = top.rgbSum + bottom.rgbSum;
+        return;
+      }
+
+      Samples rgbSamples = Samples.of(rgbImage);
+      Samples maskSamples = maskImage == null ? null : Samples.of(maskImage);
+      if (rgbSamples != null && (maskImage == null || maskSamples != null)) {
+        encodeSamples(rgbSamples, maskSamples);
+        return;
+      }
+
+      PixelKernels kernels = PixelKernels.get();
+      int[] scanline = new int[width];
+      byte[] alphas = new byte[width];
+      short[] colors = new short[width];
+      ByteBuffer alpha = planes.alpha.duplicate();
+      ShortBuffer rgb = planes.rgb.duplicate().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+      for (int y = y0; y < y1; y++) {
+        if (maskImage != null) {
+          maskImage.getRGB(0, y + yBase, width, 1, scanline, 0, width);
+          kernels.encodeAlpha(scanline, 0, 0, alphas, 0, width);
+        }
+        rgbImage.getRGB(0, y + yBase, width, 1, scanline, 0, width);
+        if (maskImage == null) {
+          kernels.encodeAlpha(scanline, 0, 24, alphas, 0, width);
+        }
+        kernels.encodeColor(scanline, 0, colors, 0, width);
+        alpha.position(y * width);
+        alpha.put(alphas, 0, width);
+        rgb.position(y * width);
+        rgb.put(colors, 0, width);
+      }
+
+      alphaSum = sum(planes.alpha, y0 * width, y1 * width);
+      rgbSum = sum(planes.rgb, y0 * width * 2, y1 * width * 2);
+    }
+
+    void encodeSamples(Samples rgbSamples, Samples maskSamples) {
+      byte[] encodedAlpha = PixelKernels.ENCODED_ALPHA;
+      ByteBuffer alpha = planes.alpha, rgb = planes.rgb;
+      int aSum = 0, cSum = 0;
+      for (int y = y0; y < y1; y++) {
+        int src = rgbSamples.offset(0, y + yBase);
+        int maskSrc = maskSamples == null ? 0 : maskSamples.offset(0, y + yBase);
+        int dst = y * width;
+        for (int x = 0; x < width; x++, dst++) {
+          int c = rgbSamples.argb(src);
+          src += rgbSamples.pixelStride;
+          byte a;
+          if (maskSamples == null) {
+            a = encodedAlpha[c >>> 24];
+          } else {
+            a = encodedAlpha[maskSamples.argb(maskSrc) & 255];
+            maskSrc += maskSamples.pixelStride;
+          }
+          int color = (((c & 0xff0000) >> 19) << 11) + (((c & 0x00ff00) >> 11) << 6) + ((c & 0x0000ff) >> 3);
+          alpha.put(dst, a);
+          rgb.put(dst * 2, (byte)color);
+          rgb.put(dst * 2 + 1, (byte)(color >> 8));
+          aSum += a & 255;
+          cSum += (color & 255) + (color >> 8);
+        }
+      }
+      alphaSum = aSum;
+      rgbSum = cSum;
+    }
+  }
+
+  // Where an image's 8-bit samples sit in its raster, so they can be read
+  // without going through its ColorModel.  Covers 8-bit sRGB (with or
+  // without alpha, not premultiplied) and 8-bit gray, interleaved in one
+  // byte array.
+  static class Samples {
+    byte[] data;
+    int base, scanlineStride, pixelStride;
+    int red, green, blue, alpha; // band offsets; alpha -1 if there isn't one
+    int[] grayArgb;              // for gray, what getRGB() gives for each sample
+
+    // null if the image isn't laid out that way.
+    static Samples of(BufferedImage image) {
+      WritableRaster raster = image.getRaster();
+      ColorModel cm = image.getColorModel();
+      if (!(raster.getDataBuffer() instanceof DataBufferByte) || raster.getDataBuffer().getNumBanks() != 1 ||
+          !(raster.getSampleModel() instanceof PixelInterleavedSampleModel) ||
+          !(cm instanceof ComponentColorModel) || cm.isAlphaPremultiplied()) {
+        return null;
+      }
+      for (int i = 0; i < cm.getNumComponents(); i++) {
+        if (cm.getComponentSize(i) != 8) return null;
+      }
+
+      PixelInterleavedSampleModel sm = (PixelInterleavedSampleModel)raster.getSampleModel();
+      int[] bands = sm.getBandOffsets();
+      Samples samples = new Samples();
+      samples.data = ((DataBufferByte)raster.getDataBuffer()).getData();
+      samples.scanlineStride = sm.getScanlineStride();
+      samples.pixelStride = sm.getPixelStride();
+      samples.base = raster.getDataBuffer().getOffset() -
+                     raster.getSampleModelTranslateY() * samples.scanlineStride -
+                     raster.getSampleModelTranslateX() * samples.pixelStride;
+
+      ColorSpace cs = cm.getColorSpace();
+      if (cs.isCS_sRGB() && (bands.length == 3 || bands.length == 4)) {
+        samples.red = bands[0];
+        samples.green = bands[1];
+        samples.blue = bands[2];
+        samples.alpha = bands.length == 4 ? bands[3] : -1;
+      } else if (cs.getType() == ColorSpace.TYPE_GRAY && bands.length == 1) {
+        // Gray goes through a color conversion in getRGB(), so take its
+        // word for each of the 256 possible samples.
+        samples.red = bands[0];
+        samples.grayArgb = new int[256];
+        byte[] sample = new byte[1];
+        for (int v = 0; v < 256; v++) {
+          sample[0] = (byte)v;
+          samples.grayArgb[v] = cm.getRGB(sample);
+        }
+      } else {
+        return null;
+      }
+      return samples;
+    }
+
+    int offset(int x, int y) {
+      return base + y * scanlineStride + x * pixelStride;
+    }
+
+    // The pixel at offset, as getRGB() would return it.
+    int argb(int offset) {
+      if (grayArgb != null) return grayArgb[data[offset + red] & 255];
+      int a = alpha < 0 ? 255 : data[offset + alpha] & 255;
+      return (a << 24) + ((data[offset + red] & 255) << 16) + ((data[offset + green] & 255) << 8) +
+             (data[offset + blue] & 255);
+    }
+  }
+
+  static int sum(ByteBuffer bytes, int from, int to) {
+    int sum = 0;
+    for (int i = from; i < to; i++) sum += bytes.get(i) & 255;
+    return sum;
+  }
+}
@@ -0,0 +1,39 @@
+// The sizes of an SRF's image sections, and where each one sits in the PNG:
+// sections are stacked top to bottom, left-aligned, in file order.
+public class SectionLayout {
+  int[] widths;
+  int[] heights;
+
+  public SectionLayout(int sectionCount) {
+    widths = new int[sectionCount];
+    heights = new int[sectionCount];
+  }
+
+  public int getSectionCount() { return widths.length; }
+  public int getWidth(int section) { return widths[section]; }
+  public int getHeight(int section) { return heights[section]; }
+
+  public void setSize(int section, int width, int height) {
+    widths[section] = width;
+    heights[section] = height;
+  }
+
+  // The PNG row that the given section starts on.
+  public int getY(int section) {
+    int y = 0;
+    for (int i = 0; i < section; i++) y += heights[i];
+    return y;
+  }
+
+  public int getFullWidth() {
+    int w = 0;
+    for (int i = 0; i < widths.length; i++) {
+      if (widths[i] > w) w = widths[i];
+    }
+    return w;
+  }
+
+  public int getFullHeight() {
+    return getY(heights.length);
+  }
+}
@@ -1,38 +1,117 @@
 import java.awt.*;
 import java.awt.image.*;
-import javax.imageio.ImageIO;
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
+// Converts an SRF into a PNG (or a PNG plus a mask PNG) and an info file.
+//
+// Everything about a conversion lives in local variables, so one instance can
+// run any number of conversions, including at the same time from several
+// threads (see SrfBatch).
 public class Srf2Png {
-  int checksum = 0;
-  int sectionCount = 0;
-  int[] sectionWidths = new int[10];
-  int[] sectionHeights = new int[10];
-  BufferedImage rgbImage = null, maskImage = null;
+  PrintStream log;
+  // How the PNGs are written; see PngWriter.
+  int pngLevel = PngWriter.DEFAULT_LEVEL;
+  int pngFilter = PngWriter.ADAPTIVE;
+  boolean pngParallel = false;
+
+  public Srf2Png() {
+    this(System.out);
+  }
+
+  // Progress messages go to log; pass SrfBatch.QUIET to drop them.
+  public Srf2Png(PrintStream log) {
+    this.log = log;
+  }
   
   public static void main(String[] args) {
+    // Where messages go: standard error when standard output carries the PNG.
+    PrintStream messages = System.out;
     try {
       boolean separateMask = false;
       boolean forceOverwrite = false;
+      boolean streaming = false;
+      boolean json = false;
+      String infoFilename = null;
+      Srf2Png s2p = new Srf2Png();
       
       // Check for "-m" command line arg.
       int curArg = 0;
-      while (curArg < args.length && args[curArg].startsWith("-")) {
-        if (args[curArg].indexOf("m") >= 0) separateMask = true;
-        if (args[curArg].indexOf("f") >= 0) forceOverwrite = true;
+      while (curArg < args.length && args[curArg].startsWith("-") && !args[curArg].equals("-")) {
+        if (args[curArg].equals("--json")) {
+          json = true;
+        } else if (args[curArg].startsWith("--info=")) {
+          infoFilename = args[curArg].substring(7);
+        } else if (args[curArg].startsWith("--")) {
+          if (!s2p.parsePngOption(args[curArg])) {
+            printUsage();
+            return;
+          }
+        } else {
+          if (!SrfBatch.isFlags(args[curArg], "mfsp")) {
+            printUsage();
+            return;
+          }
+          if (args[curArg].indexOf("m") >= 0) separateMask = true;
+          if (args[curArg].indexOf("f") >= 0) forceOverwrite = true;
+          if (args[curArg].indexOf("s") >= 0) streaming = true;
+          if (args[curArg].indexOf("p") >= 0) s2p.pngParallel = true;
+        }
         curArg += 1;
       }
 
       if (curArg == (args.length - 2)) {
-        Srf2Png s2p = new Srf2Png();
-        s2p.convert(args[curArg], args[curArg + 1], separateMask, forceOverwrite);
+        String srfFilename = args[curArg], pngBase = args[curArg + 1];
+        PhaseTimer timer = new PhaseTimer("srf2png", srfFilename);
+        if (pngBase.equals("-")) {
+          messages = System.err;
+          s2p.log = messages;
+          convertToStdout(s2p, srfFilename, infoFilename, separateMask, forceOverwrite, streaming, timer);
+        } else if (srfFilename.equals("-")) {
+          s2p.convert(Channels.newChannel(System.in), pngBase, separateMask, forceOverwrite, streaming, timer);
+        } else {
+          s2p.convert(srfFilename, pngBase, separateMask, forceOverwrite, streaming, timer);
+        }
+        if (json) messages.println(timer.toJson());
       } else {
         printUsage();
       }
       
+    } catch (ConversionException e) {
+      messages.println(e.getMessage());
+      System.exit(1);
     } catch (IOException e) {
-      System.out.println("Error encountered!");
+      messages.println("Error encountered!");
+      System.exit(1);
+    }
+  }
+
+  // The PNG to standard output, from the SRF file or ("-") standard input,
+  // read in one pass either way.
+  static void convertToStdout(Srf2Png s2p, String srfFilename, String infoFilename, boolean separateMask,
+                              boolean forceOverwrite, boolean streaming, PhaseTimer timer) throws IOException {
+    if (separateMask) {
+      throw new ConversionException("Error: A separate mask can't go to standard output.");
+    }
+    if (infoFilename != null && !forceOverwrite && new File(infoFilename).exists()) {
+      throw new ConversionException("Error: File '" + infoFilename + "' already exists.  Use the '-f' option to overwrite existing files.");
+    }
+    ReadableByteChannel in;
+    if (srfFilename.equals("-")) {
+      in = Channels.newChannel(System.in);
+    } else if (new File(srfFilename).exists()) {
+      in = new FileInputStream(srfFilename).getChannel();
+    } else {
+      throw new ConversionException("Error: Couldn't find SRF file '" + srfFilename + "'.");
+    }
+    try {
+      s2p.convert(in, new BufferedOutputStream(System.out, 64 * 1024), infoFilename, streaming, timer);
+    } finally {
+      in.close();
     }
   }
   
@@ -43,259 +122,408 @@ public class Srf2Png {
     System.out.println("Options:");
     System.out.println("  -m Use a separate image for the alpha masks.");
     System.out.println("  -f Force overwriting of existing files.");
+    System.out.println("  -s Stream: write the PNG(s) a row at a time as the SRF is");
+    System.out.println("     decoded, instead of building the whole image in memory.");
+    System.out.println("  -p Compress the PNG(s) on every core.");
+    System.out.println("  --level=N PNG deflate level: 0 (stored), 1 (fastest) to 9");
+    System.out.println("     (smallest).  Default " + PngWriter.DEFAULT_LEVEL + ".");
+    System.out.println("  --filter=F PNG row filter: adaptive (default), none, sub, up,");
+    System.out.println("     average or paeth.");
+    System.out.println("  --fast Same as --level=1 --filter=none, for intermediate files.");
+    System.out.println("  --json Finish with a line of JSON timing each phase.");
+    System.out.println("  --info=FILE With png_base '-', also write the info file to FILE.");
+    System.out.println("");
+    System.out.println("An srf_filename of '-' reads the SRF from standard input, and a");
+    System.out.println("png_base of '-' writes just the PNG (no mask) to standard output.");
+    System.out.println("Either way the SRF is read in one pass, front to back.");
     System.out.println("");
     System.out.println("Example: java Srf2Png -m vehicle.srf newvehicle");
     System.out.println("  Reads vehicle.srf and creates newvehicle.png,");
     System.out.println("  newvehicle_mask.png, and newvehicle_info.txt.");
+    System.out.println("Example: tar -xOf vehicles.tar car.srf | java Srf2Png --info=car_info.txt - - > car.png");
     System.out.println("");
   }
   
+  // Set the PNG compression from a --level, --filter or --fast option.
+  // Returns false if it isn't one of those, or its value is bad.
+  public boolean parsePngOption(String option) {
+    if (option.equals("--fast")) {
+      pngLevel = 1;
+      pngFilter = PngWriter.NONE;
+    } else if (option.startsWith("--level=")) {
+      String level = option.substring(8);
+      if (!level.matches("[0-9]")) return false;
+      pngLevel = SrfBatch.safeParseInt(level);
+    } else if (option.startsWith("--filter=")) {
+      pngFilter = PngWriter.parseFilter(option.substring(9));
+      if (pngFilter < PngWriter.ADAPTIVE) return false;
+    } else {
+      return false;
+    }
+    return true;
+  }
+
+  public void setPngOptions(int level, int filter, boolean parallel) {
+    pngLevel = level;
+    pngFilter = filter;
+    pngParallel = parallel;
+  }
+
   public void convert(String srfFilename, String pngBase, boolean separateMask, boolean forceOverwrite) throws IOException {
+    convert(srfFilename, pngBase, separateMask, forceOverwrite, false);
+  }
+
+  // With streaming set, rows go to the PNG(s) as they're decoded, so memory
+  // use stays at a scanline or two no matter how big the sheet is.
+  public void convert(String srfFilename, String pngBase, boolean separateMask, boolean forceOverwrite,
+                      boolean streaming) throws IOException {
+    convert(srfFilename, pngBase, separateMask, forceOverwrite, streaming, new PhaseTimer("srf2png", srfFilename));
+  }
+
+  // The same, timing each phase with timer: "header" (reading the SRF's
+  // header and finding its sections), then "decode" and "png", or just
+  // "stream" when streaming, and last "info".
+  public void convert(String srfFilename, String pngBase, boolean separateMask, boolean forceOverwrite,
+                      boolean streaming, PhaseTimer timer) throws IOException {
     int i;
-    File file;
-    
-    // Be a little helpful if they added the .png extension.
-    if (extName(pngBase).equalsIgnoreCase(".png")) {
-      System.out.println("Note: stripping '.png' off the end of png_base.");
-      pngBase = pngBase.substring(0,pngBase.length() - 4);
-    }
 
     // Be a little helpful if they forgot the .srf extension.
     if (extName(srfFilename).equals("") && !((new File(srfFilename)).exists()) && ((new File(srfFilename + ".srf")).exists())) {
-      System.out.println("Note: adding '.srf' to the end of srf_filename.");
+      log.println("Note: adding '.srf' to the end of srf_filename.");
       srfFilename += ".srf";
     } else if (!(new File(srfFilename)).exists()) {
-      System.out.println("Error: Couldn't find SRF file '" + srfFilename + "'.");
-      return;
+      throw new ConversionException("Error: Couldn't find SRF file '" + srfFilename + "'.");
     }
     
-    String[] filenames = { pngBase + ".png", pngBase + "_mask.png", pngBase + "_info.txt" };
-
-    if (separateMask) {
-      System.out.println("Converting SRF to PNG with separate alpha mask.");
-    } else {
-      System.out.println("Converting SRF to PNG.");
-    }
+    String[] filenames = outputFilenames(pngBase, separateMask, forceOverwrite);
     
-    // Check if filenames exist already...
-    if (!forceOverwrite) {
-      for (i = 0; i < filenames.length; i ++) {
-        file = new File(filenames[i]);
-        if (file.exists()) {
-          System.out.println("Error: File '" + filenames[i] + "' already exists.  Use the '-f' option to overwrite existing files.");
-          return;
-        }
-      }
+    timer.start("header");
+    SrfReader srf;
+    try {
+      srf = new SrfReader(srfFilename);
+    } catch (IOException e) {
+      throw new ConversionException(e.getMessage());
     }
     
-    FileInputStream srf = new FileInputStream(srfFilename);
-    
     //
     // Header Section
     //
     
-    String fileIdentifier = readBasicString(srf,16); // "GARMIN BITMAP 01"
-    if (!fileIdentifier.equals("GARMIN BITMAP 01")) {
-      System.out.println("Invalid SRF file.");
-      return;
-    }
-    srf.skip(8); // 4,4 -- purpose unknown
-    sectionCount = readInt32(srf);
-    srf.skip(4); // 5 -- purpose unknown
-    srf.skip(7); // P"578"
-    srf.skip(4); // 6 -- purpose unknown
-    String versionString = readPString(srf);
-    srf.skip(4); // 7 -- purpose unknown
-    String productString = readPString(srf); // Product Code
-    System.out.println("SRF Revision:   " + versionString);
-    System.out.println("SRF Product:    " + productString);
-    System.out.println("Image Sections: " + sectionCount);
-    
-    // Make sure we don't have too many image sections.
-    if (sectionCount > 9) {
-      System.out.println("\nError: Too many image sections in this SRF.");
-      return;
-    }
+    int sectionCount = srf.getSectionCount();
+    log.println("SRF Revision:   " + srf.getVersionString());
+    log.println("SRF Product:    " + srf.getProductString());
+    log.println("Image Sections: " + sectionCount);
     
     //
     // Get size info of the srf and final PNG image(s)
     // 
-    int fullImageWidth = 0;
-    int fullImageHeight = 0;
-    readSectionSizes(srf);
+    SectionLayout layout = srf.getLayout();
+    SrfReader.Section[] sections = new SrfReader.Section[sectionCount];
     for (i = 0; i < sectionCount; i++) {
-      if (sectionWidths[i] > fullImageWidth) fullImageWidth = sectionWidths[i];
-      fullImageHeight += sectionHeights[i];
+      sections[i] = srf.readSection(i);
     }
-    
-    //
-    // Read each image section into the PNG(s)
-    //
-    
-    int curYPos = 0;
+    timer.end(new File(srfFilename).length());
+
+    writeOutputs(sections, layout, filenames, separateMask, streaming, timer);
+  }
+
+  // The same, but reading the SRF in one pass from in, without seeking, so
+  // it can come from a pipe or standard input.
+  public void convert(ReadableByteChannel in, String pngBase, boolean separateMask, boolean forceOverwrite,
+                      boolean streaming, PhaseTimer timer) throws IOException {
+    String[] filenames = outputFilenames(pngBase, separateMask, forceOverwrite);
+    timer.start("header");
+    SrfStreamReader srf = new SrfStreamReader(in);
+    SrfReader.Section[] sections = readSections(srf);
+    timer.end(srf.getOffset());
+    writeOutputs(sections, layoutOf(sections), filenames, separateMask, streaming, timer);
+  }
+
+  // Read an SRF in one pass from in, as above, and write just an RGBA PNG
+  // to pngOut (flushed, not closed), for the end of a pipe or standard
+  // output.  The info file goes to infoFilename, unless that's null.  It's
+  // written before the PNG, so a Png2Srf reading the PNG from the other end
+  // of a pipe finds it.  Returns the sections' layout.
+  public SectionLayout convert(ReadableByteChannel in, OutputStream pngOut, String infoFilename,
+                               boolean streaming, PhaseTimer timer) throws IOException {
+    timer.start("header");
+    SrfStreamReader srf = new SrfStreamReader(in);
+    SrfReader.Section[] sections = readSections(srf);
+    SectionLayout layout = layoutOf(sections);
+    timer.end(srf.getOffset());
+
+    if (infoFilename != null) {
+      timer.start("info");
+      writeInfo(infoFilename, null, layout);
+      timer.end(fileLength(infoFilename));
+    }
+
+    if (streaming) {
+      timer.start("stream");
+      streamImages(sections, layout, pngOut, null);
+      timer.end(0);
+    } else {
+      timer.start("decode");
+      BufferedImage image = decodeImages(sections, layout, false)[0];
+      timer.end(planeBytes(sections));
+      timer.start("png");
+      writePng(image, pngOut);
+      BufferPool.SHARED.give(image);
+      timer.end(0);
+    }
+    pngOut.flush();
+    return layout;
+  }
+
+  // The PNG, mask and info filenames for pngBase, checking none of them
+  // exist unless we're to overwrite them.
+  String[] outputFilenames(String pngBase, boolean separateMask, boolean forceOverwrite) throws IOException {
+    // Be a little helpful if they added the .png extension.
+    if (extName(pngBase).equalsIgnoreCase(".png")) {
+      log.println("Note: stripping '.png' off the end of png_base.");
+      pngBase = pngBase.substring(0,pngBase.length() - 4);
+    }
+
+    String[] filenames = { pngBase + ".png", pngBase + "_mask.png", pngBase + "_info.txt" };
 
     if (separateMask) {
-      rgbImage =  new BufferedImage(fullImageWidth, fullImageHeight, BufferedImage.TYPE_INT_RGB);
-      maskImage = new BufferedImage(fullImageWidth, fullImageHeight, BufferedImage.TYPE_BYTE_GRAY);
+      log.println("Converting SRF to PNG with separate alpha mask.");
     } else {
-      rgbImage =  new BufferedImage(fullImageWidth, fullImageHeight, BufferedImage.TYPE_INT_ARGB);
+      log.println("Converting SRF to PNG.");
     }
     
-    for (i = 0; i < sectionCount; i++) {
-      readImageSection(srf, curYPos, separateMask);
-      curYPos += sectionHeights[i];
+    // Check if filenames exist already...
+    if (!forceOverwrite) {
+      for (int i = 0; i < filenames.length; i ++) {
+        if (new File(filenames[i]).exists()) {
+          throw new ConversionException("Error: File '" + filenames[i] + "' already exists.  Use the '-f' option to overwrite existing files.");
+        }
+      }
     }
+    return filenames;
+  }
 
-    srf.close();
-    
+  // Every section of a stream, then its footer.
+  SrfReader.Section[] readSections(SrfStreamReader srf) throws IOException {
+    log.println("SRF Revision:   " + srf.getVersionString());
+    log.println("SRF Product:    " + srf.getProductString());
+    log.println("Image Sections: " + srf.getSectionCount());
+    // Grown as the sections arrive, rather than trusting the count enough
+    // to allocate for it up front.
+    List<SrfReader.Section> sections = new ArrayList<SrfReader.Section>();
+    while (srf.hasMoreSections()) sections.add(srf.readSection());
+    if (!srf.readFooter()) log.println("Warning: SRF checksum doesn't add up (see SrfVerify).");
+    return sections.toArray(new SrfReader.Section[sections.size()]);
+  }
 
-    //
-    // Now create the PNG(s)
-    //
-    
-    file = new File(filenames[0]);
-    ImageIO.write(rgbImage, "png", file);
-    if (separateMask) {
-      file = new File(filenames[1]);
-      ImageIO.write(maskImage, "png", file);
+  static SectionLayout layoutOf(SrfReader.Section[] sections) {
+    SectionLayout layout = new SectionLayout(sections.length);
+    for (int i = 0; i < sections.length; i++) layout.setSize(i, sections[i].getWidth(), sections[i].getHeight());
+    return layout;
+  }
+
+  // Decode the sections into the PNG(s) and write the info file:
+  // filenames are from outputFilenames().
+  void writeOutputs(SrfReader.Section[] sections, SectionLayout layout, String[] filenames,
+                    boolean separateMask, boolean streaming, PhaseTimer timer) throws IOException {
+    if (streaming) {
+      //
+      // Decode each image section straight into the PNG(s)
+      //
+      
+      timer.start("stream");
+      streamImages(sections, layout, filenames[0], separateMask ? filenames[1] : null);
+      timer.end(fileLength(filenames[0]) + (separateMask ? fileLength(filenames[1]) : 0));
+    } else {
+      //
+      // Read each image section into the PNG(s)
+      //
+      
+      timer.start("decode");
+      BufferedImage[] images = decodeImages(sections, layout, separateMask);
+      BufferedImage rgbImage = images[0], maskImage = images[1];
+      timer.end(planeBytes(sections));
+
+      //
+      // Now create the PNG(s)
+      //
+      
+      timer.start("png");
+      writePng(rgbImage, filenames[0]);
+      BufferPool.SHARED.give(rgbImage);
+      if (separateMask) {
+        writePng(maskImage, filenames[1]);
+        BufferPool.SHARED.give(maskImage);
+      }
+      timer.end(fileLength(filenames[0]) + (separateMask ? fileLength(filenames[1]) : 0));
     }
     
     //
     // And lastly, write the info file
     //
     
-    file = new File(filenames[2]);
-    PrintWriter infoWriter = new PrintWriter(new FileWriter(file));
+    timer.start("info");
+    writeInfo(filenames[2], separateMask ? filenames[1] : null, layout);
+    timer.end(fileLength(filenames[2]));
+  }
+
+  // maskFilename is null if there's no separate mask.
+  static void writeInfo(String infoFilename, String maskFilename, SectionLayout layout) throws IOException {
+    PrintWriter infoWriter = new PrintWriter(new FileWriter(infoFilename));
     try {
-      infoWriter.println("MaskFile: " + (separateMask ? filenames[1] : "<none>"));
-      infoWriter.println("Width: " + fullImageWidth);
-      infoWriter.println("Height: " + fullImageHeight);
-      infoWriter.println("SectionCount: " + sectionCount);
-      for (i = 0; i < sectionCount; i++) {
-        infoWriter.println("SectionWidth" + (i+1) + ": " + sectionWidths[i]);
-        infoWriter.println("SectionHeight" + (i+1) + ": " + sectionHeights[i]);
+      infoWriter.println("MaskFile: " + (maskFilename != null ? maskFilename : "<none>"));
+      infoWriter.println("Width: " + layout.getFullWidth());
+      infoWriter.println("Height: " + layout.getFullHeight());
+      infoWriter.println("SectionCount: " + layout.getSectionCount());
+      for (int i = 0; i < layout.getSectionCount(); i++) {
+        infoWriter.println("SectionWidth" + (i+1) + ": " + layout.getWidth(i));
+        infoWriter.println("SectionHeight" + (i+1) + ": " + layout.getHeight(i));
       }
     } finally {
       infoWriter.close();
     }
   }
-  
-  public void readSectionSizes(FileInputStream srf) throws IOException {
-    // Save our spot so we can come back later.
-    long initialPosition = srf.getChannel().position();
-    
-    int i;
-    for (i = 0; i < sectionCount; i++) {
-      srf.skip(12);
-      int h = readInt16(srf);
-      int w = readInt16(srf);
-      sectionHeights[i] = h;
-      sectionWidths[i] = w;
-      srf.skip(8 + 8 + w*h + 8 + w*h*2);
+
+  // The alpha and RGB bytes the sections hold.
+  static long planeBytes(SrfReader.Section[] sections) {
+    long bytes = 0;
+    for (int i = 0; i < sections.length; i++) {
+      bytes += (long)sections[i].getWidth() * sections[i].getHeight() * 3;
     }
-    
-    // Restore stream position.
-    srf.getChannel().position(initialPosition);
+    return bytes;
+  }
+
+  static long fileLength(String filename) {
+    return new File(filename).length();
   }
   
-  public void readImageSection(FileInputStream srf, int yBase, boolean separateMask) throws IOException {
-    // First, the image header
-    srf.skip(12); // 0,16,0 -- purpose unknown
-    int height = readInt16(srf);
-    int width = readInt16(srf);
-    srf.skip(2); // 16,8 -- purpose unknown
-    int linebytes = readInt16(srf);
-    srf.skip(4); // 0 -- purpose unknown
-    System.out.println("Image Section Dimensions: " + width + "x" + height);
-    
-    // Next, the alpha data
-    srf.skip(4); // 11 -- possibly the data type?
-    srf.skip(4); // length of following data, equals width*height
-    byte[] alphaBuffer = new byte[width*height];
-    srf.read(alphaBuffer, 0, width*height);
-    
-    // Finally, the RGB data...
-    srf.skip(4); // 1 -- possibly the data type?
-    srf.skip(4); // length of following data, equals width*height*2
-    byte[] rgbBuffer = new byte[width*height*2];
-    srf.read(rgbBuffer, 0, width*height*2);
-    
-    int x,y,a,color,pos;
+  // Decode every section into images laid out as in the PNG.  Returns
+  // { rgbImage, maskImage }; the mask is null unless separateMask is set.
+  // The images come from the BufferPool; give them back when done with them.
+  public BufferedImage[] decodeImages(SrfReader.Section[] sections, SectionLayout layout, boolean separateMask) {
+    int fullImageWidth = layout.getFullWidth();
+    int fullImageHeight = layout.getFullHeight();
+    BufferedImage rgbImage, maskImage = null;
+    if (separateMask) {
+      rgbImage = BufferPool.SHARED.takeImage(fullImageWidth, fullImageHeight, BufferedImage.TYPE_INT_RGB);
+      maskImage = BufferPool.SHARED.takeImage(fullImageWidth, fullImageHeight, BufferedImage.TYPE_BYTE_GRAY);
+    } else {
+      rgbImage = BufferPool.SHARED.takeImage(fullImageWidth, fullImageHeight, BufferedImage.TYPE_INT_ARGB);
+    }
     
-    // Write the data into our in-memory images.
-    pos = 0;
-    for (y = 0; y < height; y++) {
-      for (x = 0; x < width; x++) {
-        a = decodeAlpha(alphaBuffer[pos]);
-        color = decodeColor(rgbBuffer[pos*2], rgbBuffer[pos*2+1]);
-        if (separateMask) {
-          rgbImage.setRGB(x, yBase + y, color);
-          maskImage.setRGB(x, yBase + y, (a << 16) + (a << 8) + a);
-        } else {
-          rgbImage.setRGB(x, yBase + y, (a << 24) + color);
-        }
-        pos += 1;
-      }
+    for (int i = 0; i < sections.length; i++) {
+      log.println("Image Section Dimensions: " + sections[i].getWidth() + "x" + sections[i].getHeight());
     }
-  }
-  
-  // Read a string from file -- one that's prefixed by a 32-bit int with its length.
-  public String readPString(FileInputStream s) throws IOException {
-    int len = readInt32(s);
-    return readBasicString(s, len);
-  }
-  
-  public String readBasicString(FileInputStream s, int len) throws IOException {
-    byte[] buffer = new byte[len];
-    s.read(buffer, 0, len);
-    return new String(buffer);
+    clearBesideSections(layout, rgbImage, maskImage);
+    SectionDecoder.decodeSections(sections, layout, rgbImage, maskImage);
+    return new BufferedImage[] { rgbImage, maskImage };
   }
 
-  // Read a little-endian short from the file.
-  public int readInt16(FileInputStream s) throws IOException {
-    int i = 0;
-    i = s.read() + (s.read() << 8);
-    return i;
+  // The sections cover every pixel of a pooled image except those to the
+  // right of a narrow section, which may still hold an old image's pixels.
+  // Make them transparent black, as in a new image.
+  static void clearBesideSections(SectionLayout layout, BufferedImage rgbImage, BufferedImage maskImage) {
+    int fullImageWidth = layout.getFullWidth();
+    int[] pixels = ((DataBufferInt)rgbImage.getRaster().getDataBuffer()).getData();
+    byte[] mask = maskImage == null ? null : ((DataBufferByte)maskImage.getRaster().getDataBuffer()).getData();
+    for (int i = 0; i < layout.getSectionCount(); i++) {
+      int y0 = layout.getY(i), y1 = y0 + layout.getHeight(i);
+      for (int y = y0, pos = y0 * fullImageWidth; y < y1; y++, pos += fullImageWidth) {
+        Arrays.fill(pixels, pos + layout.getWidth(i), pos + fullImageWidth, 0);
+        if (mask != null) Arrays.fill(mask, pos + layout.getWidth(i), pos + fullImageWidth, (byte)0);
+      }
+    }
   }
 
-  // Read a little-endian int from the file.
-  public int readInt32(FileInputStream s) throws IOException {
-    int i = 0;
-    i = s.read() + (s.read() << 8) + (s.read() << 16) + (s.read() << 24);
-    return i;
+  // Decode the sections a row at a time into a PNG, and a gray mask PNG too
+  // unless maskFilename is null.  Rows past a narrow section's right edge
+  // are left transparent black, like the unused parts of decodeImages().
+  public void streamImages(SrfReader.Section[] sections, SectionLayout layout,
+                           String pngFilename, String maskFilename) throws IOException {
+    OutputStream pngOut = new BufferedOutputStream(new FileOutputStream(pngFilename), 64 * 1024);
+    OutputStream maskOut = null;
+    try {
+      if (maskFilename != null) maskOut = new BufferedOutputStream(new FileOutputStream(maskFilename), 64 * 1024);
+      streamImages(sections, layout, pngOut, maskOut);
+    } finally {
+      pngOut.close();
+      if (maskOut != null) maskOut.close();
+    }
   }
 
-  public void addBytesToChecksum(byte[] bytes) {
-    int len = Arrays.asList(bytes).size();
-    for (int i = 0; i < len; i++) {
-      checksum += bytes[i];
+  // The same to streams, which are flushed but not closed.  maskOut is null
+  // unless there's to be a separate mask.
+  public void streamImages(SrfReader.Section[] sections, SectionLayout layout,
+                           OutputStream pngOut, OutputStream maskOut) throws IOException {
+    int fullImageWidth = layout.getFullWidth();
+    int fullImageHeight = layout.getFullHeight();
+    PixelKernels kernels = PixelKernels.get();
+    int[] pixels = new int[fullImageWidth];
+    byte[] mask = new byte[fullImageWidth];
+
+    PngWriter png = newPngWriter(pngOut, fullImageWidth, fullImageHeight,
+                                 maskOut != null ? PngWriter.RGB : PngWriter.RGBA);
+    PngWriter maskPng = null;
+    if (maskOut != null) {
+      maskPng = newPngWriter(maskOut, fullImageWidth, fullImageHeight, PngWriter.GRAY);
+    }
+
+    for (int i = 0; i < sections.length; i++) {
+      SrfReader.Section section = sections[i];
+      int width = section.getWidth();
+      log.println("Image Section Dimensions: " + width + "x" + section.getHeight());
+      ByteBuffer alpha = section.getAlpha().duplicate();
+      ShortBuffer rgb = section.getRgb().duplicate().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+      Arrays.fill(pixels, width, fullImageWidth, 0);
+      Arrays.fill(mask, width, fullImageWidth, (byte)0);
+
+      for (int y = 0, pos = 0; y < section.getHeight(); y++, pos += width) {
+        if (maskPng == null) {
+          kernels.decodeArgb(alpha, rgb, pos, pixels, 0, width);
+        } else {
+          kernels.decodeRgb(rgb, pos, pixels, 0, width);
+          kernels.decodeMask(alpha, pos, mask, 0, width);
+          maskPng.writeRow(mask, 0);
+        }
+        png.writeRow(pixels, 0);
+      }
     }
+
+    png.finish();
+    if (maskPng != null) maskPng.finish();
+    pngOut.flush();
+    if (maskOut != null) maskOut.flush();
   }
 
-  // Write a string to file -- one that's prefixed by a 32-bit int with its length.
-  public void writePString(FileOutputStream s, String string) throws IOException {
-    writeInt32(s, string.length());
-    byte[] bytes = string.getBytes();
-    s.write(bytes);
-    addBytesToChecksum(bytes);
+  // A PngWriter on out with this converter's compression level, filter and
+  // parallel settings (see setPngOptions()).
+  PngWriter newPngWriter(OutputStream out, int width, int height, int colorType) throws IOException {
+    return new PngWriter(out, width, height, colorType, pngLevel, pngFilter, pngParallel);
   }
 
-  // Write a little-endian int to the file.
-  public void writeInt32(FileOutputStream s, int i) throws IOException {
-    for (int j = 0; j < 4; j++) {
-      s.write(i & 255);
-      checksum += (i & 255);
-      i >>= 8;
+  // Write one of decodeImages()' images to a PNG file.
+  public void writePng(BufferedImage image, String filename) throws IOException {
+    OutputStream out = new BufferedOutputStream(new FileOutputStream(filename), 64 * 1024);
+    try {
+      writePng(image, out);
+    } finally {
+      out.close();
     }
   }
 
-  // Write a little-endian short to the file.
-  public void writeInt16(FileOutputStream s, int i) throws IOException {
-    for (int j = 0; j < 2; j++) {
-      s.write(i & 255);
-      checksum += (i & 255);
-      i >>= 8;
-    }
+  // The same to a stream, which isn't closed.
+  public void writePng(BufferedImage image, OutputStream out) throws IOException {
+    PngWriter.write(image, out, pngLevel, pngFilter, pngParallel);
+  }
+
+  public void readImageSection(SrfReader.Section section, int yBase, BufferedImage rgbImage, BufferedImage maskImage) {
+    int width = section.getWidth();
+    int height = section.getHeight();
+    log.println("Image Section Dimensions: " + width + "x" + height);
+    
+    // Write the data into our in-memory images, a scanline at a time.
+    SectionDecoder.decodeSection(section.getAlpha(), section.getRgb(), width, height,
+                                 rgbImage, maskImage, yBase);
   }
   
   // Turn a 16-bit color into a 24-bit one.
@@ -0,0 +1,291 @@
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Runs Srf2Png or Png2Srf over many files in one JVM, spread over a
+// work-stealing pool with one thread per core.  A file that fails is reported
+// and the rest of the run carries on.
+public class SrfBatch {
+  // Swallows the converters' progress messages.
+  public static final PrintStream QUIET = new PrintStream(new OutputStream() {
+    public void write(int b) {}
+    public void write(byte[] b, int off, int len) {}
+  });
+
+  boolean toPng;
+  boolean separateMask = false;
+  boolean forceOverwrite = false;
+  boolean streaming = false;
+  boolean json = false;
+  int threads = Runtime.getRuntime().availableProcessors();
+  // Holds the PNG options for srf2png.
+  Srf2Png pngOptions = new Srf2Png(QUIET);
+  File outputDir;
+
+  public static void main(String[] args) {
+    SrfBatch batch = new SrfBatch();
+
+    int curArg = 0;
+    while (curArg < args.length && args[curArg].startsWith("-")) {
+      if (args[curArg].startsWith("--threads=")) {
+        batch.threads = Math.max(1, safeParseInt(args[curArg].substring(10)));
+      } else if (args[curArg].equals("--json")) {
+        batch.json = true;
+      } else if (args[curArg].startsWith("--")) {
+        if (!batch.pngOptions.parsePngOption(args[curArg])) {
+          printUsage();
+          return;
+        }
+      } else {
+        if (!isFlags(args[curArg], "mfsp")) {
+          printUsage();
+          return;
+        }
+        if (args[curArg].indexOf("m") >= 0) batch.separateMask = true;
+        if (args[curArg].indexOf("f") >= 0) batch.forceOverwrite = true;
+        if (args[curArg].indexOf("s") >= 0) batch.streaming = true;
+        if (args[curArg].indexOf("p") >= 0) batch.pngOptions.pngParallel = true;
+      }
+      curArg += 1;
+    }
+
+    if (curArg > args.length - 3 || !(args[curArg].equals("srf2png") || args[curArg].equals("png2srf"))) {
+      printUsage();
+      return;
+    }
+    batch.toPng = args[curArg].equals("srf2png");
+    batch.outputDir = new File(args[curArg + 1]);
+
+    try {
+      List<File[]> jobs = new ArrayList<File[]>();
+      for (int i = curArg + 2; i < args.length; i++) {
+        batch.findInputs(args[i], jobs);
+      }
+      if (jobs.size() == 0) {
+        System.out.println("Error: No input files found.");
+        System.exit(1);
+      }
+      int failures = batch.run(jobs);
+      if (failures > 0) System.exit(1);
+    } catch (IOException e) {
+      System.out.println("Error: " + e.getMessage());
+      System.exit(1);
+    }
+  }
+
+  public static void printUsage() {
+    System.out.println("");
+    System.out.println("Usage: java SrfBatch [options] <srf2png|png2srf> <output_dir> <input>...");
+    System.out.println("");
+    System.out.println("Each input is a file, a directory (searched recursively), or a glob");
+    System.out.println("such as 'vehicles/**/*.srf'.  For srf2png the inputs are .srf files;");
+    System.out.println("for png2srf they're found by their _info.txt files.  Outputs keep");
+    System.out.println("their path relative to the directory or glob they were found under.");
+    System.out.println("");
+    System.out.println("Options:");
+    System.out.println("  -m Use a separate image for the alpha masks (srf2png).");
+    System.out.println("  -f Force overwriting of existing files.");
+    System.out.println("  -s Stream PNGs a row at a time, to run in a small heap (srf2png).");
+    System.out.println("  -p Compress each PNG on every core (srf2png).");
+    System.out.println("  --level=N, --filter=F, --fast PNG compression (srf2png); see Srf2Png.");
+    System.out.println("  --threads=N Convert N files at a time (default: one per core).");
+    System.out.println("  --json Print a line of JSON timing each phase of each file.");
+    System.out.println("");
+    System.out.println("Example: java SrfBatch -m srf2png pngs vehicles");
+    System.out.println("");
+  }
+
+  // Turn one command line input into jobs of { input, output } files.  For
+  // png2srf the input is the PNG base (the info file minus "_info.txt").
+  public void findInputs(String input, final List<File[]> jobs) throws IOException {
+    final Path root;
+    final PathMatcher matcher;
+    if (isGlob(input)) {
+      root = globRoot(input);
+      matcher = FileSystems.getDefault().getPathMatcher("glob:" + input);
+    } else {
+      Path path = Paths.get(input);
+      if (!Files.exists(path)) throw new IOException("Couldn't find '" + input + "'.");
+      if (!Files.isDirectory(path)) {
+        addJob(path, path.getFileName(), jobs);
+        return;
+      }
+      root = path;
+      matcher = null;
+    }
+
+    final List<Path> found = new ArrayList<Path>();
+    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        if (matcher == null ? isInput(file) : matcher.matches(file) && isInput(file)) found.add(file);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    Collections.sort(found);
+    for (Path file : found) {
+      addJob(file, root.relativize(file), jobs);
+    }
+  }
+
+  boolean isInput(Path file) {
+    String name = file.getFileName().toString().toLowerCase();
+    return toPng ? name.endsWith(".srf") : name.endsWith("_info.txt");
+  }
+
+  void addJob(Path file, Path relative, List<File[]> jobs) {
+    String name = relative.toString();
+    String input = file.toString();
+    String output;
+    if (toPng) {
+      output = stripSuffix(name, ".srf");
+    } else {
+      input = stripSuffix(input, "_info.txt");
+      output = stripSuffix(name, "_info.txt") + ".srf";
+    }
+    jobs.add(new File[] { new File(input), new File(outputDir, output) });
+  }
+
+  // Convert every job, then print each failure (in input order), a summary,
+  // and how long each phase of a conversion took.  Returns the number of
+  // failures.
+  public int run(List<File[]> jobs) {
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    List<Future<Long>> results = new ArrayList<Future<Long>>();
+    List<PhaseTimer> timers = new ArrayList<PhaseTimer>();
+    long[] gcBefore = BufferPool.gcTotals();
+    long start = System.nanoTime();
+
+    for (final File[] job : jobs) {
+      final PhaseTimer timer = new PhaseTimer(toPng ? "srf2png" : "png2srf", job[0].getPath());
+      timers.add(timer);
+      results.add(pool.submit(new Callable<Long>() {
+        public Long call() throws Exception {
+          return convert(job[0], job[1], timer);
+        }
+      }));
+    }
+
+    int failures = 0;
+    long inputBytes = 0;
+    List<PhaseTimer> converted = new ArrayList<PhaseTimer>();
+    for (int i = 0; i < jobs.size(); i++) {
+      try {
+        inputBytes += results.get(i).get();
+        converted.add(timers.get(i));
+        if (json) System.out.println(timers.get(i).toJson());
+      } catch (ExecutionException e) {
+        failures += 1;
+        System.out.println("Failed: " + jobs.get(i)[0] + ": " + describe(e.getCause()));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    pool.shutdown();
+
+    double seconds = (System.nanoTime() - start) / 1e9;
+    long[] gcAfter = BufferPool.gcTotals();
+    System.out.println("Converted " + converted.size() + " of " + jobs.size() + " files in " +
+                       String.format("%.2f", seconds) + "s using " + threads + " threads.");
+    System.out.println(String.format("  %.1f files/sec, %.1f MB/sec read",
+                                     converted.size() / seconds, inputBytes / seconds / (1024 * 1024)));
+    System.out.println("  Buffer pool: " + BufferPool.SHARED.getStats());
+    System.out.println("  GC: " + (gcAfter[0] - gcBefore[0]) + " collections, " +
+                       (gcAfter[1] - gcBefore[1]) + " ms");
+    printPhaseTimes(converted);
+    return failures;
+  }
+
+  // The 50th, 90th and 99th percentile and the slowest time of each phase,
+  // over the files that converted.
+  static void printPhaseTimes(List<PhaseTimer> timers) {
+    if (timers.size() == 0) return;
+    LinkedHashSet<String> phases = new LinkedHashSet<String>();
+    for (PhaseTimer timer : timers) phases.addAll(timer.getPhases());
+    phases.add("total");
+
+    System.out.println(String.format("  %-8s %9s %9s %9s %9s  (ms)", "phase", "p50", "p90", "p99", "max"));
+    for (String phase : phases) {
+      long[] nanos = new long[timers.size()];
+      int n = 0;
+      for (PhaseTimer timer : timers) {
+        long t = phase.equals("total") ? timer.getTotalNanos() : timer.getNanos(phase);
+        if (t >= 0) nanos[n++] = t;
+      }
+      Arrays.sort(nanos, 0, n);
+      System.out.println(String.format("  %-8s %9.2f %9.2f %9.2f %9.2f", phase,
+                                       percentile(nanos, n, 50) / 1e6, percentile(nanos, n, 90) / 1e6,
+                                       percentile(nanos, n, 99) / 1e6, nanos[n - 1] / 1e6));
+    }
+  }
+
+  // Nearest-rank percentile of the first n (sorted) values.
+  static long percentile(long[] sorted, int n, int p) {
+    int rank = (int)Math.ceil(p / 100.0 * n);
+    return sorted[Math.max(0, rank - 1)];
+  }
+
+  // Convert one file, returning the number of input bytes read.
+  long convert(File input, File output, PhaseTimer timer) throws IOException {
+    File parent = output.getParentFile();
+    if (parent != null) parent.mkdirs();
+
+    if (toPng) {
+      Srf2Png s2p = new Srf2Png(QUIET);
+      s2p.setPngOptions(pngOptions.pngLevel, pngOptions.pngFilter, pngOptions.pngParallel);
+      s2p.convert(input.getPath(), output.getPath(), separateMask, forceOverwrite, streaming, timer);
+      return input.length();
+    }
+    new Png2Srf(QUIET).convert(input.getPath(), output.getPath(), forceOverwrite, timer);
+    return new File(input.getPath() + ".png").length() + new File(input.getPath() + "_info.txt").length();
+  }
+
+  // The pool may wrap a task's exception on the way out, so dig for the
+  // original before printing it.
+  static String describe(Throwable e) {
+    while (e.getCause() != null && !(e instanceof IOException)) e = e.getCause();
+    if (e instanceof IOException && e.getMessage() != null) return e.getMessage().trim();
+    return e.toString();
+  }
+
+  static boolean isGlob(String s) {
+    return s.indexOf('*') >= 0 || s.indexOf('?') >= 0 || s.indexOf('[') >= 0 || s.indexOf('{') >= 0;
+  }
+
+  // The directory part of a glob before its first wildcard.
+  static Path globRoot(String glob) {
+    Path root = null;
+    for (String part : glob.split("[/\\\\]")) {
+      if (isGlob(part)) break;
+      if (root == null) {
+        root = Paths.get(part.length() == 0 ? "/" : part);
+      } else {
+        root = root.resolve(part);
+      }
+    }
+    return root == null ? Paths.get("") : root;
+  }
+
+  static String stripSuffix(String s, String suffix) {
+    if (s.toLowerCase().endsWith(suffix)) return s.substring(0, s.length() - suffix.length());
+    return s;
+  }
+
+  // Whether arg ("-mf", say) is one or more of the single-letter flags in
+  // allowed and nothing else.
+  static boolean isFlags(String arg, String allowed) {
+    if (arg.length() < 2) return false;
+    for (int i = 1; i < arg.length(); i++) {
+      if (allowed.indexOf(arg.charAt(i)) < 0) return false;
+    }
+    return true;
+  }
+
+  static int safeParseInt(String s) {
+    int i;
+    try { i = Integer.parseInt(s); } catch (NumberFormatException e) { i = 0; }
+    return i;
+  }
+}
@@ -0,0 +1,316 @@
+import java.awt.image.BufferedImage;
+import javax.imageio.ImageIO;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+// Microbenchmarks for the codec hot paths: the per-pixel transforms, whole
+// section decode and encode, and full in-memory conversions at a few sheet
+// sizes and section counts.
+//
+// Each benchmark warms up, then runs timed iterations and reports the mean
+// and standard deviation in ops/sec.  Results go to stdout as a table and,
+// with --json, one JSON object per line so they can be compared across
+// versions.  Run it with "rake bench" or "ant bench".
+public class SrfBench {
+  // 3D frame sizes to build sheets from (36 frames across), and section counts.
+  static final int[] FRAME_SIZES = { 20, 80, 160 };
+  static final int[] SECTION_COUNTS = { 2, 4 };
+
+  int warmupIterations = 3;
+  int iterations = 5;
+  long iterationMillis = 500;
+  String filter = null;
+  PrintStream json = null;
+
+  static volatile long sink;
+
+  public static void main(String[] args) {
+    SrfBench bench = new SrfBench();
+    try {
+      for (int i = 0; i < args.length; i++) {
+        String arg = args[i];
+        if (arg.startsWith("--json=")) {
+          bench.json = new PrintStream(new FileOutputStream(arg.substring(7)));
+        } else if (arg.startsWith("--filter=")) {
+          bench.filter = arg.substring(9);
+        } else if (arg.startsWith("--iterations=")) {
+          bench.iterations = Math.max(1, SrfBatch.safeParseInt(arg.substring(13)));
+        } else if (arg.startsWith("--warmup=")) {
+          bench.warmupIterations = SrfBatch.safeParseInt(arg.substring(9));
+        } else if (arg.startsWith("--time=")) {
+          bench.iterationMillis = Math.max(10, SrfBatch.safeParseInt(arg.substring(7)));
+        } else {
+          printUsage();
+          return;
+        }
+      }
+      bench.runAll();
+      if (bench.json != null) bench.json.close();
+    } catch (IOException e) {
+      System.out.println("Error: " + e.getMessage());
+      System.exit(1);
+    }
+  }
+
+  public static void printUsage() {
+    System.out.println("");
+    System.out.println("Usage: java SrfBench [options]");
+    System.out.println("");
+    System.out.println("Options:");
+    System.out.println("  --json=FILE Also write results to FILE, one JSON object per line.");
+    System.out.println("  --filter=TEXT Only run benchmarks whose name contains TEXT.");
+    System.out.println("  --iterations=N Timed iterations per benchmark (default 5).");
+    System.out.println("  --warmup=N Warm-up iterations per benchmark (default 3).");
+    System.out.println("  --time=MS Length of each iteration (default 500).");
+    System.out.println("");
+  }
+
+  // One thing to time.  run() does a single operation.
+  static abstract class Benchmark {
+    String name, params;
+
+    Benchmark(String name, String params) {
+      this.name = name;
+      this.params = params;
+    }
+
+    abstract void run() throws IOException;
+  }
+
+  public void runAll() throws IOException {
+    List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+    addPixelBenchmarks(benchmarks);
+    for (int f = 0; f < FRAME_SIZES.length; f++) {
+      for (int s = 0; s < SECTION_COUNTS.length; s++) {
+        addSheetBenchmarks(benchmarks, FRAME_SIZES[f], SECTION_COUNTS[s]);
+      }
+    }
+
+    System.out.println(String.format("%-22s %-28s %14s %12s", "Benchmark", "Params", "ops/sec", "+/-"));
+    for (Benchmark b : benchmarks) {
+      if (filter != null && b.name.indexOf(filter) < 0) continue;
+      measure(b);
+    }
+  }
+
+  void measure(Benchmark b) throws IOException {
+    for (int i = 0; i < warmupIterations; i++) runIteration(b);
+    double[] scores = new double[iterations];
+    double mean = 0;
+    for (int i = 0; i < iterations; i++) {
+      scores[i] = runIteration(b);
+      mean += scores[i] / iterations;
+    }
+    double variance = 0;
+    for (int i = 0; i < iterations; i++) {
+      variance += (scores[i] - mean) * (scores[i] - mean) / Math.max(1, iterations - 1);
+    }
+    double error = Math.sqrt(variance);
+
+    System.out.println(String.format("%-22s %-28s %14.1f %12.1f", b.name, b.params, mean, error));
+    if (json != null) {
+      json.println("{\"benchmark\":\"" + b.name + "\",\"params\":\"" + b.params + "\"," +
+                   "\"unit\":\"ops/s\",\"score\":" + mean + ",\"error\":" + error + "," +
+                   "\"iterations\":" + iterations + "}");
+    }
+  }
+
+  // Run the operation for about iterationMillis, returning ops/sec.
+  double runIteration(Benchmark b) throws IOException {
+    long deadline = System.nanoTime() + iterationMillis * 1000000L;
+    long start = System.nanoTime();
+    long ops = 0;
+    long now;
+    do {
+      b.run();
+      ops += 1;
+      now = System.nanoTime();
+    } while (now < deadline);
+    return ops / ((now - start) / 1e9);
+  }
+
+  //
+  // Per-pixel transforms, over a scanline's worth of values per op.
+  //
+
+  void addPixelBenchmarks(List<Benchmark> benchmarks) {
+    final Srf2Png s2p = new Srf2Png(SrfBatch.QUIET);
+    final Png2Srf p2s = new Png2Srf(SrfBatch.QUIET);
+    final int n = 4096;
+    final byte[] bytes = new byte[n * 2];
+    final int[] ints = new int[n];
+    Random random = new Random(578);
+    random.nextBytes(bytes);
+    for (int i = 0; i < n; i++) ints[i] = random.nextInt();
+    String params = n + " pixels";
+
+    benchmarks.add(new Benchmark("decodeColor", params) {
+      void run() {
+        long sum = 0;
+        for (int i = 0; i < n; i++) sum += s2p.decodeColor(bytes[i * 2], bytes[i * 2 + 1]);
+        sink = sum;
+      }
+    });
+    benchmarks.add(new Benchmark("encodeColor", params) {
+      void run() {
+        long sum = 0;
+        for (int i = 0; i < n; i++) sum += p2s.encodeColor(ints[i]);
+        sink = sum;
+      }
+    });
+    benchmarks.add(new Benchmark("decodeAlpha", params) {
+      void run() {
+        long sum = 0;
+        for (int i = 0; i < n; i++) sum += s2p.decodeAlpha(bytes[i]);
+        sink = sum;
+      }
+    });
+    benchmarks.add(new Benchmark("encodeAlpha", params) {
+      void run() {
+        long sum = 0;
+        for (int i = 0; i < n; i++) sum += p2s.encodeAlpha(ints[i]);
+        sink = sum;
+      }
+    });
+
+    // The same transforms a scanline at a time, for each PixelKernels.
+    final ByteBuffer alpha = ByteBuffer.wrap(bytes, 0, n);
+    final ShortBuffer rgb = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+    final int[] pixels = new int[n];
+    final byte[] alphaOut = new byte[n];
+    final short[] colorsOut = new short[n];
+    PixelKernels[] kernels = { PixelKernels.SCALAR, PixelKernels.BULK };
+    String[] kernelNames = { "scalar", "bulk" };
+    for (int k = 0; k < kernels.length; k++) {
+      final PixelKernels kernel = kernels[k];
+      String kernelParams = params + ", " + kernelNames[k];
+      benchmarks.add(new Benchmark("kernelDecodeArgb", kernelParams) {
+        void run() {
+          kernel.decodeArgb(alpha, rgb, 0, pixels, 0, n);
+        }
+      });
+      benchmarks.add(new Benchmark("kernelEncodeAlpha", kernelParams) {
+        void run() {
+          kernel.encodeAlpha(ints, 0, 24, alphaOut, 0, n);
+        }
+      });
+      benchmarks.add(new Benchmark("kernelEncodeColor", kernelParams) {
+        void run() {
+          kernel.encodeColor(ints, 0, colorsOut, 0, n);
+        }
+      });
+    }
+  }
+
+  //
+  // Whole sections and whole files, for one sheet shape.
+  //
+
+  void addSheetBenchmarks(List<Benchmark> benchmarks, int frameSize, int sectionCount) throws IOException {
+    final SectionLayout layout = sheetLayout(frameSize, sectionCount);
+    final BufferedImage sheet = randomSheet(layout);
+    final byte[] srfData = encode(layout, sheet, null);
+    final byte[] pngData = toPng(sheet);
+    String params = layout.getFullWidth() + "x" + layout.getFullHeight() + ", " + sectionCount + " sections";
+    final Srf2Png s2p = new Srf2Png(SrfBatch.QUIET);
+    final Png2Srf p2s = new Png2Srf(SrfBatch.QUIET);
+
+    SrfReader srf = new SrfReader(ByteBuffer.wrap(srfData));
+    final SrfReader.Section section = srf.readSection();
+    final BufferedImage argb = new BufferedImage(section.getWidth(), section.getHeight(), BufferedImage.TYPE_INT_ARGB);
+    final BufferedImage rgb = new BufferedImage(section.getWidth(), section.getHeight(), BufferedImage.TYPE_INT_RGB);
+    final BufferedImage mask = new BufferedImage(section.getWidth(), section.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
+    String sectionParams = section.getWidth() + "x" + section.getHeight();
+
+    // Section 1 is the same size whatever the section count, so only time
+    // the section benchmarks once per frame size.
+    if (sectionCount == SECTION_COUNTS[0]) {
+      benchmarks.add(new Benchmark("sectionDecode", sectionParams) {
+        void run() {
+          SectionDecoder.decodeSection(section.getAlpha(), section.getRgb(), section.getWidth(), section.getHeight(), argb, null, 0);
+        }
+      });
+      benchmarks.add(new Benchmark("sectionDecodeMask", sectionParams) {
+        void run() {
+          SectionDecoder.decodeSection(section.getAlpha(), section.getRgb(), section.getWidth(), section.getHeight(), rgb, mask, 0);
+        }
+      });
+      benchmarks.add(new Benchmark("sectionEncode", sectionParams) {
+        void run() throws IOException {
+          SrfWriter writer = new SrfWriter(new NullChannel());
+          p2s.writeImageSection(writer, layout, 0, sheet, null);
+          writer.flush();
+        }
+      });
+    }
+
+    benchmarks.add(new Benchmark("srf2png", params) {
+      void run() throws IOException {
+        SrfReader reader = new SrfReader(ByteBuffer.wrap(srfData));
+        SrfReader.Section[] sections = new SrfReader.Section[reader.getSectionCount()];
+        for (int i = 0; i < sections.length; i++) sections[i] = reader.readSection();
+        BufferedImage[] images = s2p.decodeImages(sections, layout, false);
+        ImageIO.write(images[0], "png", new NullOutputStream());
+      }
+    });
+    benchmarks.add(new Benchmark("png2srf", params) {
+      void run() throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(pngData));
+        SrfWriter writer = new SrfWriter(new NullChannel());
+        p2s.writeSrf(writer, layout, image, null);
+      }
+    });
+  }
+
+  // Like a vehicle sheet: 36 frames across, full-size and half-size sections
+  // taking turns.
+  static SectionLayout sheetLayout(int frameSize, int sectionCount) {
+    SectionLayout layout = new SectionLayout(sectionCount);
+    for (int i = 0; i < sectionCount; i++) {
+      int size = (i % 2 == 0) ? frameSize : frameSize / 2;
+      layout.setSize(i, size * 36, size);
+    }
+    return layout;
+  }
+
+  static BufferedImage randomSheet(SectionLayout layout) {
+    BufferedImage image = new BufferedImage(layout.getFullWidth(), layout.getFullHeight(), BufferedImage.TYPE_INT_ARGB);
+    Random random = new Random(578);
+    for (int y = 0; y < image.getHeight(); y++) {
+      for (int x = 0; x < image.getWidth(); x++) image.setRGB(x, y, random.nextInt());
+    }
+    return image;
+  }
+
+  static byte[] encode(SectionLayout layout, BufferedImage rgbImage, BufferedImage maskImage) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    SrfWriter writer = new SrfWriter(Channels.newChannel(out));
+    new Png2Srf(SrfBatch.QUIET).writeSrf(writer, layout, rgbImage, maskImage);
+    writer.close();
+    return out.toByteArray();
+  }
+
+  static byte[] toPng(BufferedImage image) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageIO.write(image, "png", out);
+    return out.toByteArray();
+  }
+
+  static class NullOutputStream extends OutputStream {
+    public void write(int b) {}
+    public void write(byte[] b, int off, int len) {}
+  }
+
+  // Swallows whatever an SrfWriter flushes to it.
+  static class NullChannel implements WritableByteChannel {
+    public int write(ByteBuffer src) {
+      int len = src.remaining();
+      src.position(src.limit());
+      return len;
+    }
+    public boolean isOpen() { return true; }
+    public void close() {}
+  }
+}
@@ -0,0 +1,141 @@
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+
+// Talks to a running SrfServer.  Tools can keep one open and call request()
+// as often as they like; main() is a thin command line wrapper around it.
+// The server's token is read from its file in the user's home directory, so
+// only the user who started the server can use it.
+public class SrfClient {
+  Socket socket;
+  DataInputStream in;
+  DataOutputStream out;
+
+  public SrfClient(int port) throws IOException {
+    socket = new Socket(InetAddress.getLoopbackAddress(), port);
+    in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    try {
+      out.writeUTF(SrfServer.readToken(port));
+      out.flush();
+      Response response = readResponse();
+      if (!response.ok) throw new IOException(response.message);
+    } catch (IOException e) {
+      socket.close();
+      throw e;
+    }
+  }
+
+  public static void main(String[] args) {
+    int port = SrfServer.DEFAULT_PORT;
+    int curArg = 0;
+    if (curArg < args.length && args[curArg].startsWith("--port=")) {
+      port = SrfBatch.safeParseInt(args[curArg].substring(7));
+      curArg += 1;
+    }
+    if (curArg >= args.length) {
+      printUsage();
+      return;
+    }
+
+    try {
+      String command = args[curArg];
+      String[] request = new String[args.length - curArg];
+      byte[] payload = new byte[0];
+      String outputFile = null;
+      System.arraycopy(args, curArg, request, 0, request.length);
+
+      if (command.equals("srf2png-data") || command.equals("png2srf-data")) {
+        if (request.length < 3) {
+          printUsage();
+          return;
+        }
+        payload = Files.readAllBytes(Paths.get(request[1]));
+        outputFile = request[2];
+        String[] sizes = new String[request.length - 2];
+        sizes[0] = command;
+        System.arraycopy(request, 3, sizes, 1, sizes.length - 1);
+        request = sizes;
+      } else {
+        // The server has its own working directory.
+        for (int i = 1; i < request.length; i++) {
+          if (!request[i].startsWith("-")) request[i] = new File(request[i]).getAbsolutePath();
+        }
+      }
+
+      long start = System.nanoTime();
+      SrfClient client = new SrfClient(port);
+      Response response;
+      try {
+        response = client.request(request, payload);
+      } finally {
+        client.close();
+      }
+      long elapsed = System.nanoTime() - start;
+
+      if (!response.ok) {
+        System.out.println(response.message);
+        System.exit(1);
+      }
+      if (outputFile != null) Files.write(Paths.get(outputFile), response.payload);
+      System.out.println(String.format("%s (%.2f ms on the server, %.2f ms round trip)",
+                                       response.message, response.elapsedNanos / 1e6, elapsed / 1e6));
+    } catch (IOException e) {
+      System.out.println("Error: " + e.getMessage());
+      System.exit(1);
+    }
+  }
+
+  public static void printUsage() {
+    System.out.println("");
+    System.out.println("Usage: java SrfClient [--port=N] <command> [arguments]");
+    System.out.println("");
+    System.out.println("Commands:");
+    System.out.println("  srf2png [options] <srf_filename> <png_base>   (see Srf2Png)");
+    System.out.println("  png2srf [options] <png_base> <srf_filename>   (see Png2Srf)");
+    System.out.println("  srf2png-data <srf_filename> <png_filename>");
+    System.out.println("  png2srf-data <png_filename> <srf_filename> <w>x<h>...");
+    System.out.println("  shutdown");
+    System.out.println("");
+    System.out.println("The -data commands send the file's bytes to the server and write");
+    System.out.println("back what it returns, so the server never touches those paths.");
+    System.out.println("");
+  }
+
+  public Response request(String[] args, byte[] payload) throws IOException {
+    out.writeInt(args.length);
+    for (int i = 0; i < args.length; i++) out.writeUTF(args[i]);
+    out.writeInt(payload.length);
+    out.write(payload);
+    out.flush();
+    return readResponse();
+  }
+
+  Response readResponse() throws IOException {
+    Response response = new Response();
+    response.ok = in.readBoolean();
+    response.elapsedNanos = in.readLong();
+    response.message = in.readUTF();
+    int length = in.readInt();
+    if (length < 0) throw new IOException("Bad response from the SRF server.");
+    response.payload = new byte[length];
+    in.readFully(response.payload);
+    return response;
+  }
+
+  public void close() throws IOException {
+    socket.close();
+  }
+
+  public static class Response {
+    boolean ok;
+    long elapsedNanos;
+    String message;
+    byte[] payload;
+
+    public boolean isOk() { return ok; }
+    public long getElapsedNanos() { return elapsedNanos; }
+    public String getMessage() { return message; }
+    public byte[] getPayload() { return payload; }
+  }
+}
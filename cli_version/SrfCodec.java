@@ -0,0 +1,166 @@
+import java.awt.image.BufferedImage;
+import javax.imageio.ImageIO;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+// The converters as a library, for services that have the data in memory.
+// Nothing here touches the disk or prints anything; problems come back as
+// exceptions:
+//
+//   InvalidSrfException      the SRF data is corrupt or truncated
+//   LayoutMismatchException  an image doesn't match its section layout
+//   ConversionException      anything else about the input (e.g. not a PNG)
+//
+// all of which are IOExceptions.  Where Srf2Png/Png2Srf use the info file,
+// this takes and returns a SectionLayout.
+//
+//   SrfCodec.Decoded srf = SrfCodec.decode(srfBytes);
+//   byte[] png = SrfCodec.toPng(srf.getImage());
+//   byte[] srfAgain = SrfCodec.encode(SrfCodec.readPng(png), srf.getLayout());
+public class SrfCodec {
+  // A decoded SRF: its sections stacked into one TYPE_INT_ARGB image (as
+  // in the PNG Srf2Png writes), and the layout to cut it up again.
+  public static class Decoded {
+    BufferedImage image;
+    SectionLayout layout;
+    String versionString, productString;
+
+    public BufferedImage getImage() { return image; }
+    public SectionLayout getLayout() { return layout; }
+    public String getVersionString() { return versionString; }
+    public String getProductString() { return productString; }
+  }
+
+  //
+  // SRF -> image
+  //
+
+  public static Decoded decode(byte[] srfData) throws IOException {
+    return decode(ByteBuffer.wrap(srfData));
+  }
+
+  // Reads the stream to the end, but doesn't close it.
+  public static Decoded decode(InputStream srfData) throws IOException {
+    return decode(readFully(srfData));
+  }
+
+  // SrfReader checks every length it reads (string lengths, the section
+  // count, plane sizes) against the data before allocating anything, so a
+  // corrupt one is an InvalidSrfException rather than an OutOfMemoryError.
+  // Anything it still lets through that trips up the decoding is reported
+  // the same way.
+  public static Decoded decode(ByteBuffer srfData) throws IOException {
+    SrfReader srf = new SrfReader(srfData);
+    Decoded decoded = new Decoded();
+    decoded.layout = srf.getLayout();
+    decoded.versionString = srf.getVersionString();
+    decoded.productString = srf.getProductString();
+    try {
+      decoded.image = SectionDecoder.decodeImage(srf);
+    } catch (RuntimeException e) {
+      throw new InvalidSrfException("Invalid SRF file.");
+    }
+    return decoded;
+  }
+
+  // Just section n (counting from 0), e.g. 0 for the 3D view.
+  public static BufferedImage decodeSection(ByteBuffer srfData, int n) throws IOException {
+    SrfReader.Section section = new SrfReader(srfData).readSection(n);
+    try {
+      return SectionDecoder.decodeImage(section);
+    } catch (RuntimeException e) {
+      throw new InvalidSrfException("Invalid SRF file.");
+    }
+  }
+
+  //
+  // Image -> SRF
+  //
+
+  // Encode an image cut up by layout, with the alpha from the image itself.
+  public static byte[] encode(BufferedImage image, SectionLayout layout) throws IOException {
+    return encode(image, null, layout);
+  }
+
+  // Encode with the alpha from a separate gray mask image (or from image,
+  // if mask is null).
+  public static byte[] encode(BufferedImage image, BufferedImage mask, SectionLayout layout) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(estimateSrfSize(layout));
+    encode(image, mask, layout, out);
+    return out.toByteArray();
+  }
+
+  // Write the SRF to out, which is flushed but not closed.
+  public static void encode(BufferedImage image, BufferedImage mask, SectionLayout layout,
+                            OutputStream out) throws IOException {
+    checkLayout(image, "Image", layout);
+    if (mask != null) checkLayout(mask, "Mask", layout);
+    SrfWriter srf = new SrfWriter(Channels.newChannel(out));
+    try {
+      // The footer flushes everything to out.
+      new Png2Srf(SrfBatch.QUIET).writeSrf(srf, layout, image, mask);
+    } finally {
+      // Give back the pooled buffer without closing the caller's stream.
+      srf.release();
+    }
+    out.flush();
+  }
+
+  static void checkLayout(BufferedImage image, String name, SectionLayout layout) throws LayoutMismatchException {
+    if (layout.getSectionCount() == 0) throw new LayoutMismatchException("Layout has no sections.");
+    for (int i = 0; i < layout.getSectionCount(); i++) {
+      int w = layout.getWidth(i), h = layout.getHeight(i);
+      if (w <= 0 || h <= 0 || w > 0xffff || h > 0xffff) {
+        throw new LayoutMismatchException("Section " + (i+1) + " can't be " + w + "x" + h + ".");
+      }
+    }
+    if (image.getWidth() < layout.getFullWidth() || image.getHeight() < layout.getFullHeight()) {
+      throw new LayoutMismatchException(name + " is " + image.getWidth() + "x" + image.getHeight() +
+                                        ", too small for sections totalling " +
+                                        layout.getFullWidth() + "x" + layout.getFullHeight() + ".");
+    }
+  }
+
+  static int estimateSrfSize(SectionLayout layout) {
+    long pixels = 0;
+    for (int i = 0; i < layout.getSectionCount(); i++) pixels += (long)layout.getWidth(i) * layout.getHeight(i);
+    return (int)Math.min(Integer.MAX_VALUE - 8, pixels * 3 + 512);
+  }
+
+  //
+  // PNG in and out
+  //
+
+  public static BufferedImage readPng(byte[] pngData) throws IOException {
+    return readPng(new ByteArrayInputStream(pngData));
+  }
+
+  // Doesn't close the stream.
+  public static BufferedImage readPng(InputStream pngData) throws IOException {
+    // A memory cache, so ImageIO doesn't spool the stream to a temp file.
+    BufferedImage image = ImageIO.read(new MemoryCacheImageInputStream(pngData));
+    if (image == null) throw new ConversionException("Data isn't a PNG.");
+    return image;
+  }
+
+  // Encode an image as a PNG the way Srf2Png does by default.
+  public static byte[] toPng(BufferedImage image) throws IOException {
+    return toPng(image, PngWriter.DEFAULT_LEVEL, PngWriter.ADAPTIVE);
+  }
+
+  public static byte[] toPng(BufferedImage image, int level, int filterType) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(image.getWidth() * image.getHeight() * 2 + 1024);
+    PngWriter.write(image, out, level, filterType, false);
+    return out.toByteArray();
+  }
+
+  static ByteBuffer readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream data = new ByteArrayOutputStream(64 * 1024);
+    byte[] buffer = new byte[64 * 1024];
+    int n;
+    while ((n = in.read(buffer)) != -1) data.write(buffer, 0, n);
+    return ByteBuffer.wrap(data.toByteArray());
+  }
+}
@@ -0,0 +1,150 @@
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+// Writes a corpus of made-up SRFs to benchmark and check the converters
+// against, since real vehicles can't ship with the project.  The files
+// follow srf_format_details.txt (SrfWriter does the header, plane tags,
+// padding and checkbyte) and cover a spread of 3D frame sizes, section
+// counts and alpha patterns.
+//
+// Every alpha byte and color is one the converters can carry through a PNG
+// and back unchanged (alpha 0-126 or 128, and colors without the unused
+// 0x20 bit), so SRF -> PNG -> SRF should give back the same bytes.  (Not
+// through a separate mask PNG, though: its linear gray color space merges
+// some partial alphas, so only the opaque, sprite and clear files survive
+// Srf2Png -m unchanged.)
+//
+//   java SrfCorpus [--count=N] [--seed=N] <out_dir>
+public class SrfCorpus {
+  static final int[] FRAME_SIZES = { 10, 20, 40, 60, 80, 100, 120, 160, 200 };
+  static final int[] SECTION_COUNTS = { 1, 2, 3, 4, 6 };
+  static final String[] ALPHA_PATTERNS = { "opaque", "sprite", "gradient", "noise", "clear" };
+
+  int count = 24;
+  long seed = 578;
+
+  public static void main(String[] args) {
+    SrfCorpus corpus = new SrfCorpus();
+
+    int curArg = 0;
+    while (curArg < args.length && args[curArg].startsWith("-")) {
+      if (args[curArg].startsWith("--count=")) {
+        corpus.count = Math.max(1, SrfBatch.safeParseInt(args[curArg].substring(8)));
+      } else if (args[curArg].startsWith("--seed=")) {
+        corpus.seed = SrfBatch.safeParseInt(args[curArg].substring(7));
+      }
+      curArg += 1;
+    }
+    if (curArg != args.length - 1) {
+      printUsage();
+      return;
+    }
+
+    try {
+      File dir = new File(args[curArg]);
+      dir.mkdirs();
+      long bytes = corpus.generate(dir);
+      System.out.println("Wrote " + corpus.count + " SRFs (" + String.format("%.1f MB", bytes / (1024.0 * 1024.0)) +
+                         ") to " + dir + ".");
+    } catch (IOException e) {
+      System.out.println("Error: " + e.getMessage());
+      System.exit(1);
+    }
+  }
+
+  public static void printUsage() {
+    System.out.println("");
+    System.out.println("Usage: java SrfCorpus [options] <out_dir>");
+    System.out.println("");
+    System.out.println("Options:");
+    System.out.println("  --count=N Number of SRFs to write (default 24).");
+    System.out.println("  --seed=N Seed for the pixel data (default 578).  The same seed and");
+    System.out.println("     count always give the same files.");
+    System.out.println("");
+  }
+
+  // Write the corpus, returning the total bytes written.  File n gets the
+  // nth frame size, section count and alpha pattern, each list cycling at
+  // its own length so the combinations vary.
+  public long generate(File dir) throws IOException {
+    Random random = new Random(seed);
+    long bytes = 0;
+    for (int n = 0; n < count; n++) {
+      int frameSize = FRAME_SIZES[n % FRAME_SIZES.length];
+      int sectionCount = SECTION_COUNTS[n % SECTION_COUNTS.length];
+      String pattern = ALPHA_PATTERNS[n % ALPHA_PATTERNS.length];
+      File file = new File(dir, String.format("v%03d_f%d_s%d_%s.srf", n, frameSize, sectionCount, pattern));
+      write(file, sheetLayout(frameSize, sectionCount), pattern, random);
+      bytes += file.length();
+    }
+    return bytes;
+  }
+
+  // Like a vehicle sheet: 36 frames across, full-size and half-size sections
+  // taking turns.
+  static SectionLayout sheetLayout(int frameSize, int sectionCount) {
+    SectionLayout layout = new SectionLayout(sectionCount);
+    for (int i = 0; i < sectionCount; i++) {
+      int size = (i % 2 == 0) ? frameSize : Math.max(1, frameSize / 2);
+      layout.setSize(i, size * 36, size);
+    }
+    return layout;
+  }
+
+  static void write(File file, SectionLayout layout, String pattern, Random random) throws IOException {
+    SrfWriter srf = new SrfWriter(file.getPath());
+    try {
+      srf.writeHeader(layout.getSectionCount());
+      for (int i = 0; i < layout.getSectionCount(); i++) {
+        int w = layout.getWidth(i), h = layout.getHeight(i);
+        byte[] alpha = new byte[w * h];
+        byte[] rgb = new byte[w * h * 2];
+        fillSection(alpha, rgb, w, h, h, pattern, random);
+        srf.writeSectionHeader(w, h);
+        srf.writePlaneHeader(SrfWriter.ALPHA_PLANE, alpha.length);
+        srf.writeBytes(alpha);
+        srf.writePlaneHeader(SrfWriter.RGB_PLANE, rgb.length);
+        srf.writeBytes(rgb);
+      }
+      srf.writeFooter();
+    } finally {
+      srf.close();
+    }
+  }
+
+  // A row of frame x frame views: a disc of smoothly varying color in each,
+  // with some noise so the PNGs don't compress to nothing.  Alpha bytes are
+  // the SRF's inverted 7 bits: 0 opaque, 128 transparent.
+  static void fillSection(byte[] alpha, byte[] rgb, int w, int h, int frame, String pattern, Random random) {
+    ShortBuffer colors = ByteBuffer.wrap(rgb).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+    double radius = frame / 2.0;
+    for (int y = 0, i = 0; y < h; y++) {
+      for (int x = 0; x < w; x++, i++) {
+        int fx = x % frame;
+        double dx = fx + 0.5 - radius, dy = y + 0.5 - radius;
+        double d = Math.sqrt(dx * dx + dy * dy) / radius; // 0 at the middle, 1 at the rim
+
+        int a;
+        if (pattern.equals("opaque")) {
+          a = 0;
+        } else if (pattern.equals("clear")) {
+          a = 128;
+        } else if (pattern.equals("sprite")) {
+          a = d < 0.9 ? 0 : 128;
+        } else if (pattern.equals("gradient")) {
+          a = d >= 1 ? 128 : (int)(d * 126);
+        } else {
+          a = random.nextInt(128);
+          if (a == 127) a = 128;
+        }
+        alpha[i] = (byte)a;
+
+        int r = (x / frame * 7 + fx) & 31;
+        int g = (y * 31 / Math.max(1, h - 1) + random.nextInt(2)) & 31;
+        int b = (int)(Math.min(1, d) * 31) ^ random.nextInt(2);
+        colors.put(i, (short)((r << 11) + (g << 6) + b));
+      }
+    }
+  }
+}
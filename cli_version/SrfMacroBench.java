@@ -0,0 +1,253 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+// End-to-end benchmark: every SRF in a corpus (see SrfCorpus) goes through
+// Srf2Png and back through Png2Srf, on disk, just as a user would run them.
+// Each round trip must give back the original bytes exactly, each file with
+// a corrupt length field must be rejected as invalid, and the whole run must
+// keep up with the baseline saved on this machine, if there is one.
+//
+// After a warm-up pass, the corpus is timed for a number of rounds and the
+// best round's throughput (MB of SRF per second, both ways) is compared with
+// the baseline's.  Exits with status 1 on any mismatch, or if throughput is
+// more than the tolerance below the baseline.
+//
+//   java SrfMacroBench --save-baseline=bench/macro_baseline.properties corpus
+//   java SrfMacroBench --baseline=bench/macro_baseline.properties corpus
+public class SrfMacroBench {
+  int rounds = 3;
+  double tolerance = 0.10;
+  boolean separateMask = false;
+  boolean streaming = false;
+  File baseline = null;
+  File saveBaseline = null;
+  PrintStream json = null;
+
+  public static void main(String[] args) {
+    SrfMacroBench bench = new SrfMacroBench();
+    try {
+      int curArg = 0;
+      while (curArg < args.length && args[curArg].startsWith("-")) {
+        String arg = args[curArg];
+        if (arg.startsWith("--rounds=")) {
+          bench.rounds = Math.max(1, SrfBatch.safeParseInt(arg.substring(9)));
+        } else if (arg.startsWith("--tolerance=")) {
+          bench.tolerance = SrfBatch.safeParseInt(arg.substring(12)) / 100.0;
+        } else if (arg.startsWith("--baseline=")) {
+          bench.baseline = new File(arg.substring(11));
+        } else if (arg.startsWith("--save-baseline=")) {
+          bench.saveBaseline = new File(arg.substring(16));
+        } else if (arg.startsWith("--json=")) {
+          bench.json = new PrintStream(new FileOutputStream(arg.substring(7)));
+        } else if (arg.startsWith("--")) {
+          printUsage();
+          return;
+        } else if (!SrfBatch.isFlags(arg, "ms")) {
+          printUsage();
+          return;
+        } else {
+          if (arg.indexOf("m") >= 0) bench.separateMask = true;
+          if (arg.indexOf("s") >= 0) bench.streaming = true;
+        }
+        curArg += 1;
+      }
+      if (curArg != args.length - 1) {
+        printUsage();
+        return;
+      }
+
+      SrfBatch finder = new SrfBatch();
+      finder.toPng = true;
+      finder.outputDir = new File(".");
+      List<File[]> jobs = new ArrayList<File[]>();
+      finder.findInputs(args[curArg], jobs);
+      if (jobs.size() == 0) {
+        System.out.println("Error: No SRF files found.  Make some with SrfCorpus.");
+        System.exit(1);
+      }
+      List<File> files = new ArrayList<File>();
+      for (File[] job : jobs) files.add(job[0]);
+
+      boolean passed = bench.run(files);
+      if (bench.json != null) bench.json.close();
+      if (!passed) System.exit(1);
+    } catch (IOException e) {
+      System.out.println("Error: " + e.getMessage());
+      System.exit(1);
+    }
+  }
+
+  public static void printUsage() {
+    System.out.println("");
+    System.out.println("Usage: java SrfMacroBench [options] <corpus_dir>");
+    System.out.println("");
+    System.out.println("Options:");
+    System.out.println("  -m Round-trip through a separate mask PNG.  The mask merges some");
+    System.out.println("     partial alphas, so only files with none (in SrfCorpus's, the");
+    System.out.println("     opaque, sprite and clear ones) come back exactly.");
+    System.out.println("  -s Stream the PNGs (Srf2Png -s).");
+    System.out.println("  --rounds=N Timed passes over the corpus (default 3).");
+    System.out.println("  --baseline=FILE Fail if slower than the throughput saved in FILE.");
+    System.out.println("  --tolerance=PCT How far below the baseline still passes (default 10).");
+    System.out.println("  --save-baseline=FILE Save this run's throughput to FILE.");
+    System.out.println("  --json=FILE Also write the result to FILE as a JSON object.");
+    System.out.println("");
+  }
+
+  // Returns false if a file didn't round-trip or throughput regressed.
+  public boolean run(List<File> files) throws IOException {
+    File work = File.createTempFile("srfmacro", "");
+    work.delete();
+    if (!work.mkdir()) throw new IOException("Couldn't create " + work + ".");
+    try {
+      long bytes = 0;
+      for (File file : files) bytes += file.length();
+      System.out.println("Corpus: " + files.size() + " SRFs, " + String.format("%.1f MB", bytes / (1024.0 * 1024.0)) +
+                         (separateMask ? ", separate masks" : "") + (streaming ? ", streaming" : ""));
+
+      // The warm-up pass is also where fidelity is checked, along with
+      // SrfCodec turning corrupt copies away.
+      int mismatches = 0;
+      for (File file : files) {
+        String problem = roundTrip(file, work, true);
+        if (problem == null) problem = checkCorruptRejected(file);
+        if (problem != null) {
+          mismatches += 1;
+          System.out.println("MISMATCH " + file + ": " + problem);
+        }
+      }
+
+      double best = 0;
+      for (int r = 0; r < rounds; r++) {
+        long start = System.nanoTime();
+        for (File file : files) roundTrip(file, work, false);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double mbPerSec = bytes / seconds / (1024 * 1024);
+        System.out.println(String.format("Round %d: %.2fs, %.1f files/sec, %.2f MB/sec", r + 1, seconds,
+                                         files.size() / seconds, mbPerSec));
+        best = Math.max(best, mbPerSec);
+      }
+      System.out.println(String.format("Best: %.2f MB/sec", best));
+
+      boolean passed = mismatches == 0;
+      if (mismatches > 0) System.out.println("FAIL: " + mismatches + " files didn't round-trip exactly.");
+      passed &= checkBaseline(best);
+
+      if (saveBaseline != null) {
+        Properties saved = new Properties();
+        saved.setProperty("mb_per_sec", String.format(Locale.ROOT, "%.3f", best));
+        saved.setProperty("files", String.valueOf(files.size()));
+        saved.setProperty("corpus_bytes", String.valueOf(bytes));
+        if (saveBaseline.getParentFile() != null) saveBaseline.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(saveBaseline);
+        try {
+          saved.store(out, "SrfMacroBench baseline" + (separateMask ? " (-m)" : "") + (streaming ? " (-s)" : ""));
+        } finally {
+          out.close();
+        }
+        System.out.println("Saved baseline to " + saveBaseline + ".");
+      }
+      if (json != null) {
+        json.println("{\"benchmark\":\"roundTrip\",\"files\":" + files.size() + ",\"bytes\":" + bytes +
+                     ",\"unit\":\"MB/s\",\"score\":" + String.format(Locale.ROOT, "%.3f", best) +
+                     ",\"mismatches\":" + mismatches + ",\"passed\":" + passed + "}");
+      }
+      return passed;
+    } finally {
+      File[] left = work.listFiles();
+      if (left != null) {
+        for (int i = 0; i < left.length; i++) left[i].delete();
+      }
+      work.delete();
+    }
+  }
+
+  // Compare with the baseline, if there is one.  Returns false on a
+  // regression past the tolerance.  Throughput depends on the machine, so
+  // baselines aren't shared: each machine saves its own (--save-baseline),
+  // and until it has, there's nothing to compare with.
+  boolean checkBaseline(double mbPerSec) throws IOException {
+    if (baseline == null) return true;
+    if (!baseline.exists()) {
+      System.out.println("No baseline for this machine at " + baseline + "; not checking throughput.");
+      System.out.println("Save one with --save-baseline (ant macro-baseline, rake bench:baseline).");
+      return true;
+    }
+    Properties saved = new Properties();
+    InputStream in = new FileInputStream(baseline);
+    try {
+      saved.load(in);
+    } finally {
+      in.close();
+    }
+    double expected;
+    try {
+      expected = Double.parseDouble(saved.getProperty("mb_per_sec", ""));
+    } catch (NumberFormatException e) {
+      throw new IOException("No mb_per_sec in " + baseline + ".");
+    }
+    double change = (mbPerSec - expected) / expected;
+    String summary = String.format("%.2f MB/sec against a baseline of %.2f (%+.1f%%)", mbPerSec, expected, change * 100);
+    if (change < -tolerance) {
+      System.out.println("FAIL: " + summary + ", more than " + Math.round(tolerance * 100) + "% slower.");
+      return false;
+    }
+    System.out.println("OK: " + summary + ".");
+    return true;
+  }
+
+  // Copies of the SRF whose version string length is huge or negative must
+  // come back from SrfCodec.decode as an InvalidSrfException, not an
+  // OutOfMemoryError or some other unchecked exception.  Returns what went
+  // wrong, or null.
+  String checkCorruptRejected(File srf) throws IOException {
+    byte[] data = java.nio.file.Files.readAllBytes(srf.toPath());
+    // Identifier, 4, 4, section count, 5, "578", 6: then the length.
+    int lengthOffset = 16 + 4 * 4 + 4 + 3 + 4;
+    int[] lengths = { Integer.MAX_VALUE - 16, -5 };
+    for (int length : lengths) {
+      byte[] corrupt = data.clone();
+      ByteBuffer.wrap(corrupt).order(java.nio.ByteOrder.LITTLE_ENDIAN).putInt(lengthOffset, length);
+      try {
+        SrfCodec.decode(corrupt);
+        return "a string length of " + length + " wasn't noticed";
+      } catch (InvalidSrfException e) {
+        // As it should be.
+      } catch (IOException e) {
+        return "a string length of " + length + " gave " + e;
+      } catch (RuntimeException e) {
+        return "a string length of " + length + " gave " + e;
+      } catch (OutOfMemoryError e) {
+        return "a string length of " + length + " gave " + e;
+      }
+    }
+    return null;
+  }
+
+  // SRF -> PNG(s) -> SRF in the work directory.  If checking, returns what's
+  // wrong with the result, or null if it matches the original exactly.
+  String roundTrip(File srf, File work, boolean check) throws IOException {
+    String base = new File(work, "vehicle").getPath();
+    String result = base + ".srf";
+    try {
+      Srf2Png s2p = new Srf2Png(SrfBatch.QUIET);
+      s2p.setPngOptions(PngWriter.DEFAULT_LEVEL, PngWriter.ADAPTIVE, false);
+      s2p.convert(srf.getPath(), base, separateMask, true, streaming);
+      new Png2Srf(SrfBatch.QUIET).convert(base, result, true);
+    } catch (IOException e) {
+      if (!check) throw e;
+      return SrfBatch.describe(e);
+    }
+    if (!check) return null;
+
+    ByteBuffer original = SrfReader.mapFile(srf.getPath());
+    ByteBuffer again = SrfReader.mapFile(result);
+    if (original.remaining() != again.remaining()) {
+      return "round trip is " + again.remaining() + " bytes, not " + original.remaining() + ".";
+    }
+    int at = original.mismatch(again);
+    if (at >= 0) return "round trip differs from byte " + at + ".";
+    return null;
+  }
+}
@@ -0,0 +1,189 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+
+// Parses an SRF file out of a memory-mapped, little-endian ByteBuffer.
+// See srf_format_details.txt for the layout.
+//
+// Opening a file walks the section headers once, hopping over the pixel
+// planes, and records where each section and its planes sit.  After that any
+// section can be had with readSection(n) without touching the others, or in
+// file order with readSection().  The alpha and RGB planes are slices of the
+// mapping, so nothing gets copied until the pixels are decoded.
+public class SrfReader {
+  public static final String FILE_IDENTIFIER = "GARMIN BITMAP 01";
+  static final int SECTION_HEADER_SIZE = 28;
+  static final int PLANE_HEADER_SIZE = 8;
+  static final int MIN_SECTION_SIZE = SECTION_HEADER_SIZE + 2 * PLANE_HEADER_SIZE;
+
+  ByteBuffer data;
+  int sectionCount = 0;
+  int sectionsRead = 0;
+  String versionString, productString;
+
+  // The section index: offsets of each section header and of its planes'
+  // data, with the sizes from the header.
+  int[] sectionOffsets, alphaOffsets, rgbOffsets;
+  int[] widths, heights, lineBytes;
+
+  public SrfReader(String filename) throws IOException {
+    this(mapFile(filename));
+  }
+
+  public SrfReader(ByteBuffer srfData) throws IOException {
+    data = srfData.duplicate();
+    data.order(ByteOrder.LITTLE_ENDIAN);
+    try {
+      readHeader();
+    } catch (RuntimeException e) {
+      // Underflow, or a bogus length sending us past the end.
+      throw new InvalidSrfException("Invalid SRF file.");
+    }
+    if (sectionCount < 0) throw new InvalidSrfException("Invalid SRF file.");
+    // Don't size the index off a count the file can't possibly hold.
+    if (sectionCount > data.remaining() / MIN_SECTION_SIZE) throw new InvalidSrfException("SRF file is truncated.");
+    try {
+      indexSections();
+    } catch (RuntimeException e) {
+      // Underflow, or a plane running past the end of the file.
+      throw new InvalidSrfException("SRF file is truncated.");
+    }
+  }
+
+  public static ByteBuffer mapFile(String filename) throws IOException {
+    FileInputStream in = new FileInputStream(filename);
+    try {
+      FileChannel channel = in.getChannel();
+      // The mapping stays valid after the channel is closed.
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      in.close();
+    }
+  }
+
+  void readHeader() throws IOException {
+    String fileIdentifier = readBasicString(16);
+    if (!fileIdentifier.equals(FILE_IDENTIFIER)) {
+      throw new InvalidSrfException("Invalid SRF file.");
+    }
+    skip(8); // 4,4 -- purpose unknown
+    sectionCount = data.getInt();
+    skip(4); // 5 -- purpose unknown
+    readPString(); // "578"
+    skip(4); // 6 -- purpose unknown
+    versionString = readPString();
+    skip(4); // 7 -- purpose unknown
+    productString = readPString(); // Product Code
+  }
+
+  // Walk the section headers, skipping the planes, and fill in the index.
+  void indexSections() {
+    sectionOffsets = new int[sectionCount];
+    alphaOffsets = new int[sectionCount];
+    rgbOffsets = new int[sectionCount];
+    widths = new int[sectionCount];
+    heights = new int[sectionCount];
+    lineBytes = new int[sectionCount];
+
+    for (int i = 0; i < sectionCount; i++) {
+      sectionOffsets[i] = data.position();
+      skip(12); // 0,16,0 -- purpose unknown
+      heights[i] = data.getShort() & 0xffff;
+      widths[i] = data.getShort() & 0xffff;
+      skip(2); // 16,8 -- purpose unknown
+      lineBytes[i] = data.getShort() & 0xffff;
+      skip(4); // 0 -- purpose unknown
+
+      int pixels = widths[i] * heights[i];
+      skip(PLANE_HEADER_SIZE); // 11, then the alpha length (width*height)
+      alphaOffsets[i] = data.position();
+      skip(pixels);
+      skip(PLANE_HEADER_SIZE); // 1, then the RGB length (width*height*2)
+      rgbOffsets[i] = data.position();
+      skip(pixels * 2);
+    }
+  }
+
+  public int getSectionCount() { return sectionCount; }
+  public String getVersionString() { return versionString; }
+  public String getProductString() { return productString; }
+
+  // Where section n's header starts in the file.
+  public int getSectionOffset(int n) { return sectionOffsets[n]; }
+  public int getSectionWidth(int n) { return widths[n]; }
+  public int getSectionHeight(int n) { return heights[n]; }
+  public int getAlphaLength(int n) { return widths[n] * heights[n]; }
+  public int getRgbLength(int n) { return widths[n] * heights[n] * 2; }
+
+  // The sizes of all the sections, straight from the index.
+  public SectionLayout getLayout() {
+    SectionLayout layout = new SectionLayout(sectionCount);
+    for (int i = 0; i < sectionCount; i++) layout.setSize(i, widths[i], heights[i]);
+    return layout;
+  }
+
+  public boolean hasMoreSections() {
+    return sectionsRead < sectionCount;
+  }
+
+  // The next image section in file order.
+  public Section readSection() throws IOException {
+    if (!hasMoreSections()) throw new IOException("No more image sections in SRF file.");
+    return readSection(sectionsRead++);
+  }
+
+  // Image section n (counting from 0), sliced out of the mapping by its
+  // index entry.  Doesn't affect readSection()'s place.
+  public Section readSection(int n) throws IOException {
+    if (n < 0 || n >= sectionCount) {
+      throw new IOException("SRF file has no image section " + (n+1) + ".");
+    }
+    Section section = new Section();
+    section.width = widths[n];
+    section.height = heights[n];
+    section.lineBytes = lineBytes[n];
+    section.alpha = slice(alphaOffsets[n], getAlphaLength(n));
+    section.rgb = slice(rgbOffsets[n], getRgbLength(n));
+    return section;
+  }
+
+  // A little-endian view of len bytes at offset.
+  ByteBuffer slice(int offset, int len) {
+    ByteBuffer view = data.duplicate();
+    view.limit(offset + len);
+    view.position(offset);
+    return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  void skip(int len) {
+    data.position(data.position() + len);
+  }
+
+  // Read a string -- one that's prefixed by a 32-bit int with its length.
+  // The length is checked against what's left of the file before anything
+  // is allocated for it.
+  String readPString() throws InvalidSrfException {
+    int len = data.getInt();
+    if (len < 0 || len > data.remaining()) throw new InvalidSrfException("Invalid SRF file.");
+    return readBasicString(len);
+  }
+
+  String readBasicString(int len) {
+    byte[] buffer = new byte[len];
+    data.get(buffer);
+    return new String(buffer);
+  }
+
+  // One image section.  The planes are little-endian slices positioned at 0:
+  // alpha holds width*height bytes, rgb holds width*height 16-bit colors.
+  public static class Section {
+    int width, height, lineBytes;
+    ByteBuffer alpha, rgb;
+
+    public int getWidth() { return width; }
+    public int getHeight() { return height; }
+    public int getLineBytes() { return lineBytes; }
+    public ByteBuffer getAlpha() { return alpha; }
+    public ByteBuffer getRgb() { return rgb; }
+  }
+}
@@ -0,0 +1,359 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.*;
+
+// A long-running conversion server, so tools that convert often pay for JVM
+// startup (and JIT warm-up) once instead of on every file.  It only listens
+// on the loopback interface, and only serves clients that can read its
+// token: a random string it writes at startup to a file in the user's home
+// directory (see tokenFile()) that only the user can read.  That keeps
+// other users on the same machine from converting, overwriting files or
+// shutting it down as this user.
+//
+// A connection starts with the client sending the token as a UTF string,
+// and the server answering with a response (below) that says whether it was
+// right; a wrong token gets the connection closed.  After that it carries
+// any number of requests, one after another:
+//
+//   request:  int argc, argc UTF strings, int payload length, payload bytes
+//   response: boolean ok, long elapsed nanoseconds, UTF message,
+//             int payload length, payload bytes
+//
+// The first string of a request is the command:
+//
+//   srf2png [options] <srf_filename> <png_base>   same as Srf2Png
+//   png2srf [options] <png_base> <srf_filename>   same as Png2Srf
+//   srf2png-data                 payload is an SRF, reply is an RGBA PNG
+//   png2srf-data <w>x<h>...      payload is a PNG with one section per size
+//                                (stacked as in the info file), reply an SRF
+//   shutdown                     stop the server
+//
+// Paths are taken relative to the server's working directory, so clients
+// should send absolute ones (SrfClient does).  Connections are served on as
+// many threads as needed, but no more than maxConcurrent conversions run at
+// once; the rest wait their turn, before their payload is read, so the
+// limit bounds the memory payloads take as well as the work.  A request with
+// more than MAX_ARGS strings or a payload over MAX_PAYLOAD gets an error, and
+// the connection closed.
+//
+// No more than maxConnections connections are served at once; more are
+// closed straight away.  A client has AUTH_TIMEOUT ms to send the token, so
+// connections that never do can't hold on to those places.
+public class SrfServer {
+  public static final int DEFAULT_PORT = 7578;
+  public static final int MAX_ARGS = 4096;
+  public static final int MAX_PAYLOAD = 512 * 1024 * 1024;
+  public static final int DEFAULT_MAX_CONNECTIONS = 64;
+  public static final int AUTH_TIMEOUT = 10000; // ms
+
+  int port = DEFAULT_PORT;
+  String token;
+  Path tokenFile;
+  int maxConcurrent = Runtime.getRuntime().availableProcessors();
+  int maxConnections = DEFAULT_MAX_CONNECTIONS;
+  Semaphore conversions;
+  ServerSocket serverSocket;
+  ExecutorService connections;
+
+  public static void main(String[] args) {
+    SrfServer server = new SrfServer();
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].startsWith("--port=")) {
+        server.port = SrfBatch.safeParseInt(args[i].substring(7));
+      } else if (args[i].startsWith("--max-concurrent=")) {
+        server.maxConcurrent = Math.max(1, SrfBatch.safeParseInt(args[i].substring(17)));
+      } else if (args[i].startsWith("--max-connections=")) {
+        server.maxConnections = Math.max(1, SrfBatch.safeParseInt(args[i].substring(18)));
+      } else {
+        printUsage();
+        return;
+      }
+    }
+
+    try {
+      server.run();
+    } catch (IOException e) {
+      System.out.println("Error: " + e.getMessage());
+      System.exit(1);
+    }
+  }
+
+  public static void printUsage() {
+    System.out.println("");
+    System.out.println("Usage: java SrfServer [--port=N] [--max-concurrent=N] [--max-connections=N]");
+    System.out.println("");
+    System.out.println("Options:");
+    System.out.println("  --port=N Listen on localhost port N (default " + DEFAULT_PORT + ").");
+    System.out.println("  --max-concurrent=N Run at most N conversions at once");
+    System.out.println("    (default: one per core).");
+    System.out.println("  --max-connections=N Serve at most N connections at once");
+    System.out.println("    (default " + DEFAULT_MAX_CONNECTIONS + ").");
+    System.out.println("");
+    System.out.println("Send it work with SrfClient, as the same user.");
+    System.out.println("");
+  }
+
+  public void run() throws IOException {
+    conversions = new Semaphore(maxConcurrent);
+    connections = new ThreadPoolExecutor(0, maxConnections, 60, TimeUnit.SECONDS,
+                                         new SynchronousQueue<Runnable>(), new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "srf-connection");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    // Only once the port is ours, so a second server can't replace the
+    // first one's token.
+    tokenFile = tokenFile(serverSocket.getLocalPort());
+    token = newToken();
+    writeToken(tokenFile, token);
+    System.out.println("SRF server listening on localhost:" + serverSocket.getLocalPort() +
+                       ", " + maxConcurrent + " conversions at a time.");
+
+    while (!serverSocket.isClosed()) {
+      final Socket socket;
+      try {
+        socket = serverSocket.accept();
+      } catch (SocketException e) {
+        break; // closed by a shutdown request
+      }
+      try {
+        connections.execute(new Runnable() {
+          public void run() {
+            serve(socket);
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        System.out.println("Refused a connection: already serving " + maxConnections + ".");
+        try { socket.close(); } catch (IOException x) {}
+      }
+    }
+    connections.shutdown();
+    Files.deleteIfExists(tokenFile);
+  }
+
+  //
+  // Token
+  //
+
+  // Where the server on port keeps its token:
+  // ~/.srf_converter/server-<port>.token
+  public static Path tokenFile(int port) {
+    return Paths.get(System.getProperty("user.home"), ".srf_converter", "server-" + port + ".token");
+  }
+
+  static String newToken() {
+    byte[] bytes = new byte[32];
+    new SecureRandom().nextBytes(bytes);
+    StringBuilder hex = new StringBuilder();
+    for (int i = 0; i < bytes.length; i++) hex.append(String.format("%02x", bytes[i] & 255));
+    return hex.toString();
+  }
+
+  // Write the token where only this user can read it: the folder 0700 and
+  // the file 0600, created that way rather than changed afterwards.  Where
+  // the file system has no POSIX permissions, the owner-only equivalent
+  // File offers is the best we can do.
+  static void writeToken(Path file, String token) throws IOException {
+    Path dir = file.getParent();
+    boolean posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+    if (!Files.isDirectory(dir)) {
+      if (posix) {
+        Files.createDirectories(dir, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+      } else {
+        Files.createDirectories(dir);
+      }
+    }
+    Files.deleteIfExists(file);
+    if (posix) {
+      Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+    } else {
+      Files.createFile(file);
+      File f = file.toFile();
+      f.setReadable(false, false);
+      f.setReadable(true, true);
+      f.setWritable(false, false);
+      f.setWritable(true, true);
+    }
+    Files.write(file, token.getBytes(StandardCharsets.US_ASCII));
+  }
+
+  public static String readToken(int port) throws IOException {
+    Path file = tokenFile(port);
+    if (!Files.exists(file)) {
+      throw new IOException("No SRF server token at " + file + "; is the server running on port " + port + "?");
+    }
+    return new String(Files.readAllBytes(file), StandardCharsets.US_ASCII).trim();
+  }
+
+  // Read the client's token and answer it.  Returns false if it's wrong.
+  boolean authenticate(DataInputStream in, DataOutputStream out) throws IOException {
+    byte[] given = in.readUTF().getBytes(StandardCharsets.US_ASCII);
+    if (!MessageDigest.isEqual(given, token.getBytes(StandardCharsets.US_ASCII))) {
+      writeResponse(out, false, 0, "Wrong server token.", new byte[0]);
+      return false;
+    }
+    writeResponse(out, true, 0, "OK", new byte[0]);
+    return true;
+  }
+
+  //
+  // Requests
+  //
+
+  void serve(Socket socket) {
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      socket.setSoTimeout(AUTH_TIMEOUT);
+      if (!authenticate(in, out)) {
+        System.out.println("Refused a connection with the wrong token.");
+        return;
+      }
+      // A client that has the token may keep the connection open, idle,
+      // between requests.
+      socket.setSoTimeout(0);
+      while (true) {
+        String[] args;
+        int argc;
+        try {
+          argc = in.readInt();
+        } catch (EOFException e) {
+          break; // client hung up between requests
+        }
+        // Both lengths come from the client, so check them before making
+        // arrays that size.  What follows a bad one can't be skipped
+        // reliably, so that's the end of the connection.
+        if (argc < 0 || argc > MAX_ARGS) {
+          writeResponse(out, false, 0, "Error: Too many request arguments (" + argc + ").", new byte[0]);
+          break;
+        }
+        args = new String[argc];
+        for (int i = 0; i < args.length; i++) args[i] = in.readUTF();
+        int payloadLength = in.readInt();
+        if (payloadLength < 0 || payloadLength > MAX_PAYLOAD) {
+          writeResponse(out, false, 0, "Error: Bad request payload length (" + payloadLength + ").", new byte[0]);
+          break;
+        }
+
+        if (args.length > 0 && args[0].equals("shutdown")) {
+          if (payloadLength != 0) {
+            writeResponse(out, false, 0, "Error: shutdown takes no payload.", new byte[0]);
+            break;
+          }
+          writeResponse(out, true, 0, "Shutting down.", new byte[0]);
+          serverSocket.close();
+          break;
+        }
+
+        long start = System.nanoTime();
+        boolean ok = true;
+        String message = "OK";
+        byte[] result = new byte[0];
+        // The payload is only read in once there's a conversion free to
+        // use it.
+        conversions.acquireUninterruptibly();
+        try {
+          byte[] payload = new byte[payloadLength];
+          in.readFully(payload);
+          try {
+            result = handle(args, payload);
+          } catch (Exception e) {
+            ok = false;
+            message = SrfBatch.describe(e);
+          }
+        } finally {
+          conversions.release();
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println(String.format("%-12s %8.2f ms  %s", args.length > 0 ? args[0] : "?",
+                                         elapsed / 1e6, message));
+        writeResponse(out, ok, elapsed, message, result);
+      }
+    } catch (IOException e) {
+      System.out.println("Connection dropped: " + e.getMessage());
+    } finally {
+      try { socket.close(); } catch (IOException e) {}
+    }
+  }
+
+  void writeResponse(DataOutputStream out, boolean ok, long elapsed, String message, byte[] payload) throws IOException {
+    out.writeBoolean(ok);
+    out.writeLong(elapsed);
+    out.writeUTF(message);
+    out.writeInt(payload.length);
+    out.write(payload);
+    out.flush();
+  }
+
+  // Run one command, returning the reply payload.
+  byte[] handle(String[] args, byte[] payload) throws IOException {
+    String command = args.length > 0 ? args[0] : "";
+    boolean separateMask = false;
+    boolean forceOverwrite = false;
+    boolean streaming = false;
+    Srf2Png s2p = new Srf2Png(SrfBatch.QUIET);
+    int curArg = 1;
+    while (curArg < args.length && args[curArg].startsWith("-")) {
+      String arg = args[curArg];
+      if (arg.startsWith("--")) {
+        // Only srf2png has long options, the PNG ones.
+        if (!command.equals("srf2png") || !s2p.parsePngOption(arg)) {
+          throw new ConversionException("Error: Unknown option '" + arg + "'.");
+        }
+      } else {
+        String flags = command.equals("srf2png") ? "mfsp" : "f";
+        for (int i = 1; i < arg.length(); i++) {
+          if (flags.indexOf(arg.charAt(i)) < 0) {
+            throw new ConversionException("Error: Unknown option '-" + arg.charAt(i) + "'.");
+          }
+        }
+        if (arg.indexOf("m") >= 0) separateMask = true;
+        if (arg.indexOf("f") >= 0) forceOverwrite = true;
+        if (arg.indexOf("s") >= 0) streaming = true;
+        if (arg.indexOf("p") >= 0) s2p.setPngOptions(s2p.pngLevel, s2p.pngFilter, true);
+      }
+      curArg += 1;
+    }
+
+    if (command.equals("srf2png") && curArg == args.length - 2) {
+      s2p.convert(args[curArg], args[curArg + 1], separateMask, forceOverwrite, streaming);
+      return new byte[0];
+    }
+    if (command.equals("png2srf") && curArg == args.length - 2) {
+      new Png2Srf(SrfBatch.QUIET).convert(args[curArg], args[curArg + 1], forceOverwrite);
+      return new byte[0];
+    }
+    if (command.equals("srf2png-data")) {
+      return srfToPng(payload);
+    }
+    if (command.equals("png2srf-data") && args.length > 1) {
+      return pngToSrf(payload, args);
+    }
+    throw new ConversionException("Error: Unknown request '" + command + "'.");
+  }
+
+  byte[] srfToPng(byte[] srfData) throws IOException {
+    return SrfCodec.toPng(SrfCodec.decode(srfData).getImage());
+  }
+
+  // args[1..] are the section sizes, "<width>x<height>".
+  byte[] pngToSrf(byte[] pngData, String[] args) throws IOException {
+    SectionLayout layout = new SectionLayout(args.length - 1);
+    for (int i = 1; i < args.length; i++) {
+      int x = args[i].indexOf('x');
+      int w = x > 0 ? SrfBatch.safeParseInt(args[i].substring(0, x)) : 0;
+      int h = x > 0 ? SrfBatch.safeParseInt(args[i].substring(x + 1)) : 0;
+      if (w == 0 || h == 0) throw new ConversionException("Error: Bad section size '" + args[i] + "'.");
+      layout.setSize(i - 1, w, h);
+    }
+    return SrfCodec.encode(SrfCodec.readPng(pngData), layout);
+  }
+}
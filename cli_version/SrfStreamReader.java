@@ -0,0 +1,168 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+// Reads an SRF front to back in one pass, for input that can't be mapped or
+// seeked: a pipe, standard input, an entry in a tar file.  Where SrfReader
+// indexes a mapped file and hops about in it, this keeps its own count of
+// the bytes read and of their sum, and reads each section's planes into
+// memory as it comes to them.
+//
+// Read the header by constructing one, each section with readSection(),
+// then the padding and checkbyte with readFooter().
+public class SrfStreamReader {
+  static final int BUFFER_SIZE = 64 * 1024;
+
+  ReadableByteChannel channel;
+  // Bytes read from the channel but not used yet, between position and limit.
+  ByteBuffer buffer;
+  long offset = 0;
+  int checksum = 0;
+  int sectionCount = 0;
+  int sectionsRead = 0;
+  String versionString, productString;
+
+  public SrfStreamReader(InputStream in) throws IOException {
+    this(Channels.newChannel(in));
+  }
+
+  public SrfStreamReader(ReadableByteChannel in) throws IOException {
+    channel = in;
+    buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    buffer.flip();
+    readHeader();
+  }
+
+  void readHeader() throws IOException {
+    if (!readBasicString(16).equals(SrfReader.FILE_IDENTIFIER)) {
+      throw new InvalidSrfException("Invalid SRF file.");
+    }
+    skip(8); // 4,4 -- purpose unknown
+    sectionCount = readInt32();
+    if (sectionCount < 0) throw new InvalidSrfException("Invalid SRF file.");
+    skip(4); // 5 -- purpose unknown
+    readPString(); // "578"
+    skip(4); // 6 -- purpose unknown
+    versionString = readPString();
+    skip(4); // 7 -- purpose unknown
+    productString = readPString(); // Product Code
+  }
+
+  public int getSectionCount() { return sectionCount; }
+  public String getVersionString() { return versionString; }
+  public String getProductString() { return productString; }
+
+  // How far into the SRF we've read.
+  public long getOffset() { return offset; }
+
+  public boolean hasMoreSections() {
+    return sectionsRead < sectionCount;
+  }
+
+  // The next image section, with its planes copied out of the stream into
+  // buffers of their own.
+  public SrfReader.Section readSection() throws IOException {
+    if (!hasMoreSections()) throw new IOException("No more image sections in SRF file.");
+    SrfReader.Section section = new SrfReader.Section();
+    skip(12); // 0,16,0 -- purpose unknown
+    section.height = readInt16();
+    section.width = readInt16();
+    skip(2); // 16,8 -- purpose unknown
+    section.lineBytes = readInt16();
+    skip(4); // 0 -- purpose unknown
+
+    if ((long)section.width * section.height * 2 > Integer.MAX_VALUE - 8) {
+      throw new InvalidSrfException("Invalid SRF file.");
+    }
+    int pixels = section.width * section.height;
+    skip(SrfReader.PLANE_HEADER_SIZE); // 11, then the alpha length (width*height)
+    section.alpha = readPlane(pixels);
+    skip(SrfReader.PLANE_HEADER_SIZE); // 1, then the RGB length (width*height*2)
+    section.rgb = readPlane(pixels * 2);
+    sectionsRead += 1;
+    return section;
+  }
+
+  // Read the rest of the stream: the 0xff padding and the checkbyte.
+  // Returns false if the file's bytes don't sum to a multiple of 256 (as
+  // with files from the old Png2Srf checksum bug; see SrfVerify).
+  public boolean readFooter() throws IOException {
+    int n;
+    do {
+      used(buffer.position(), buffer.remaining());
+      buffer.clear();
+      n = channel.read(buffer);
+      buffer.flip();
+    } while (n >= 0);
+    return (checksum & 255) == 0;
+  }
+
+  //
+  // Reading and counting
+  //
+
+  // Make sure at least n bytes are in the buffer.
+  void fill(int n) throws IOException {
+    if (buffer.remaining() >= n) return;
+    buffer.compact();
+    while (buffer.position() < n) {
+      if (channel.read(buffer) < 0) {
+        buffer.flip();
+        throw new InvalidSrfException("SRF file is truncated.");
+      }
+    }
+    buffer.flip();
+  }
+
+  // The next length bytes, little-endian, in a buffer positioned at 0.
+  ByteBuffer readPlane(int length) throws IOException {
+    byte[] plane = new byte[length];
+    int n = Math.min(length, buffer.remaining());
+    buffer.get(plane, 0, n);
+    ByteBuffer rest = ByteBuffer.wrap(plane, n, length - n);
+    while (rest.hasRemaining()) {
+      if (channel.read(rest) < 0) throw new InvalidSrfException("SRF file is truncated.");
+    }
+    for (int i = 0; i < length; i++) checksum += plane[i] & 255;
+    offset += length;
+    return ByteBuffer.wrap(plane).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  void used(int start, int length) {
+    for (int i = start; i < start + length; i++) checksum += buffer.get(i) & 255;
+    offset += length;
+  }
+
+  void skip(int length) throws IOException {
+    fill(length);
+    used(buffer.position(), length);
+    buffer.position(buffer.position() + length);
+  }
+
+  int readInt16() throws IOException {
+    fill(2);
+    used(buffer.position(), 2);
+    return buffer.getShort() & 0xffff;
+  }
+
+  int readInt32() throws IOException {
+    fill(4);
+    used(buffer.position(), 4);
+    return buffer.getInt();
+  }
+
+  // Read a string -- one that's prefixed by a 32-bit int with its length.
+  String readPString() throws IOException {
+    int length = readInt32();
+    if (length < 0 || length > BUFFER_SIZE) throw new InvalidSrfException("Invalid SRF file.");
+    return readBasicString(length);
+  }
+
+  String readBasicString(int length) throws IOException {
+    fill(length);
+    used(buffer.position(), length);
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes);
+  }
+}
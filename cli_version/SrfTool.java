@@ -0,0 +1,111 @@
+import java.awt.image.BufferedImage;
+import javax.imageio.ImageIO;
+import java.io.*;
+
+// The command-line entry point of SrfTool.jar.  It hands off to the plain Java
+// converters without loading JRuby, Swing or SwingX, so a one-file
+// conversion costs little more than JVM startup.  The launcher scripts in
+// bin/ also point the JVM at the class-data-sharing archive that
+// "ant cli-jar" builds next to the jar.
+//
+//   java -jar SrfTool.jar <command> [arguments]
+public class SrfTool {
+  public static void main(String[] args) {
+    System.setProperty("java.awt.headless", "true");
+    if (args.length == 0) {
+      printUsage();
+      return;
+    }
+
+    String command = args[0];
+    String[] rest = new String[args.length - 1];
+    System.arraycopy(args, 1, rest, 0, rest.length);
+
+    if (command.equals("srf2png")) {
+      Srf2Png.main(rest);
+    } else if (command.equals("png2srf")) {
+      Png2Srf.main(rest);
+    } else if (command.equals("batch")) {
+      SrfBatch.main(rest);
+    } else if (command.equals("verify")) {
+      SrfVerify.main(rest);
+    } else if (command.equals("thumbnails")) {
+      Thumbnails.main(rest);
+    } else if (command.equals("watch")) {
+      SrfWatch.main(rest);
+    } else if (command.equals("server")) {
+      SrfServer.main(rest);
+    } else if (command.equals("client")) {
+      SrfClient.main(rest);
+    } else if (command.equals("warmup")) {
+      try {
+        warmup();
+      } catch (IOException e) {
+        System.out.println("Error: " + e.getMessage());
+        System.exit(1);
+      }
+    } else {
+      printUsage();
+    }
+  }
+
+  public static void printUsage() {
+    System.out.println("");
+    System.out.println("Usage: java -jar SrfTool.jar <command> [arguments]");
+    System.out.println("");
+    System.out.println("Commands:");
+    System.out.println("  srf2png [options] <srf_filename> <png_base>");
+    System.out.println("  png2srf [options] <png_base> <srf_filename>");
+    System.out.println("  batch <srf2png|png2srf> [options] <out_dir> <inputs...>");
+    System.out.println("  verify [options] <inputs...>");
+    System.out.println("  thumbnails [options] <out_dir> <inputs...>");
+    System.out.println("  watch [options] <watch_dir> [<out_dir>]");
+    System.out.println("  server [options]");
+    System.out.println("  client [options] <command> [arguments]");
+    System.out.println("  warmup  Convert a small made-up vehicle both ways (used to");
+    System.out.println("          build the class-data-sharing archive).");
+    System.out.println("");
+    System.out.println("Run a command without arguments for its options.");
+    System.out.println("");
+  }
+
+  // Run a PNG through png2srf and back through srf2png, both plain and with
+  // a separate mask, in a temporary directory.  This loads every class a
+  // normal conversion does, which is what the CDS archive should hold.
+  static void warmup() throws IOException {
+    File dir = File.createTempFile("srftool", "");
+    dir.delete();
+    if (!dir.mkdir()) throw new IOException("Couldn't create " + dir + ".");
+    try {
+      String base = new File(dir, "vehicle").getPath();
+      BufferedImage image = new BufferedImage(40, 30, BufferedImage.TYPE_INT_ARGB);
+      for (int y = 0; y < 30; y++) {
+        for (int x = 0; x < 40; x++) image.setRGB(x, y, (x * 6 << 24) + (y * 8 << 8) + x);
+      }
+      ImageIO.write(image, "png", new File(base + ".png"));
+      PrintWriter info = new PrintWriter(new FileWriter(base + "_info.txt"));
+      info.println("MaskFile: <none>");
+      info.println("Width: 40");
+      info.println("Height: 30");
+      info.println("SectionCount: 2");
+      info.println("SectionWidth1: 40");
+      info.println("SectionHeight1: 20");
+      info.println("SectionWidth2: 20");
+      info.println("SectionHeight2: 10");
+      info.close();
+
+      new Png2Srf(SrfBatch.QUIET).convert(base, base + ".srf", true);
+      new Srf2Png(SrfBatch.QUIET).convert(base + ".srf", base + "_out", false, true);
+      new Srf2Png(SrfBatch.QUIET).convert(base + ".srf", base + "_masked", true, true);
+      new Srf2Png(SrfBatch.QUIET).convert(base + ".srf", base + "_streamed", true, true, true);
+      new Png2Srf(SrfBatch.QUIET).convert(base + "_masked", base + "_masked.srf", true);
+      System.out.println("Warmup conversions OK.");
+    } finally {
+      File[] files = dir.listFiles();
+      if (files != null) {
+        for (int i = 0; i < files.length; i++) files[i].delete();
+      }
+      dir.delete();
+    }
+  }
+}
@@ -0,0 +1,264 @@
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Checks SRF files for corruption without converting them.  Each file is
+// memory-mapped and its structure checked against srf_format_details.txt:
+// the header and its fixed fields, every section header, the 11 (alpha) and
+// 1 (RGB) plane tags and their lengths, nothing trailing the last section but
+// 0xff padding to a multiple of 256 bytes, and the checkbyte.  The checksum is
+// summed eight bytes at a time.
+//
+// Files are checked in parallel, one per core, and reported in input order.
+public class SrfVerify {
+  int threads = Runtime.getRuntime().availableProcessors();
+  boolean quiet = false;
+
+  public static void main(String[] args) {
+    SrfVerify verify = new SrfVerify();
+
+    int curArg = 0;
+    while (curArg < args.length && args[curArg].startsWith("-")) {
+      if (args[curArg].startsWith("--threads=")) {
+        verify.threads = Math.max(1, SrfBatch.safeParseInt(args[curArg].substring(10)));
+      } else if (SrfBatch.isFlags(args[curArg], "q")) {
+        verify.quiet = true;
+      } else {
+        printUsage();
+        return;
+      }
+      curArg += 1;
+    }
+    if (curArg == args.length) {
+      printUsage();
+      return;
+    }
+
+    try {
+      // SrfBatch already knows how to find .srf files; we just ignore the
+      // outputs it would have written.
+      SrfBatch finder = new SrfBatch();
+      finder.toPng = true;
+      finder.outputDir = new File(".");
+      List<File[]> jobs = new ArrayList<File[]>();
+      for (int i = curArg; i < args.length; i++) {
+        finder.findInputs(args[i], jobs);
+      }
+      if (jobs.size() == 0) {
+        System.out.println("Error: No SRF files found.");
+        System.exit(1);
+      }
+      List<File> files = new ArrayList<File>();
+      for (File[] job : jobs) files.add(job[0]);
+      if (verify.run(files) > 0) System.exit(1);
+    } catch (IOException e) {
+      System.out.println("Error: " + e.getMessage());
+      System.exit(1);
+    }
+  }
+
+  public static void printUsage() {
+    System.out.println("");
+    System.out.println("Usage: java SrfVerify [options] <input>...");
+    System.out.println("");
+    System.out.println("Each input is an SRF file, a directory (searched recursively for");
+    System.out.println("SRFs), or a glob such as 'vehicles/**/*.srf'.");
+    System.out.println("");
+    System.out.println("Options:");
+    System.out.println("  -q Only list the files that fail.");
+    System.out.println("  --threads=N Check N files at a time (default: one per core).");
+    System.out.println("");
+    System.out.println("Exits with status 1 if any file fails.");
+    System.out.println("");
+  }
+
+  // Check every file, printing a line per file (unless quiet, then only
+  // failures) and a summary.  Returns the number of bad files.
+  public int run(List<File> files) {
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    List<Future<String>> results = new ArrayList<Future<String>>();
+    long start = System.nanoTime();
+    long bytes = 0;
+
+    for (final File file : files) {
+      bytes += file.length();
+      results.add(pool.submit(new Callable<String>() {
+        public String call() throws Exception {
+          return verify(file.getPath());
+        }
+      }));
+    }
+
+    int failures = 0;
+    for (int i = 0; i < files.size(); i++) {
+      String problem;
+      try {
+        problem = results.get(i).get();
+      } catch (ExecutionException e) {
+        problem = SrfBatch.describe(e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+      if (problem != null) {
+        failures += 1;
+        System.out.println("BAD  " + files.get(i) + ": " + problem);
+      } else if (!quiet) {
+        System.out.println("OK   " + files.get(i));
+      }
+    }
+    pool.shutdown();
+
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.println("Checked " + files.size() + " files, " + failures + " bad, in " +
+                       String.format("%.2fs (%.1f MB/sec).", seconds, bytes / seconds / (1024 * 1024)));
+    return failures;
+  }
+
+  // Check one file.  Returns null if it's good, or what's wrong with it.
+  public static String verify(String filename) throws IOException {
+    return verify(SrfReader.mapFile(filename));
+  }
+
+  public static String verify(ByteBuffer srfData) {
+    ByteBuffer data = srfData.duplicate();
+    data.order(ByteOrder.LITTLE_ENDIAN);
+    int size = data.remaining();
+    String code, version, product;
+    int sectionCount;
+
+    //
+    // Header Section
+    //
+    try {
+      byte[] identifier = new byte[16];
+      data.get(identifier);
+      if (!new String(identifier).equals(SrfReader.FILE_IDENTIFIER)) return "Not an SRF file.";
+      if (data.getInt() != 4 || data.getInt() != 4) return "Unexpected values after the identifier.";
+      sectionCount = data.getInt();
+      if (sectionCount <= 0) return "Bad section count " + sectionCount + ".";
+      String problem;
+      if (data.getInt() != 5) return "Missing field 5 in the header.";
+      if ((problem = checkPString(data)) != null) return problem;
+      code = readPString(data);
+      if (data.getInt() != 6) return "Missing field 6 in the header.";
+      if ((problem = checkPString(data)) != null) return problem;
+      version = readPString(data);
+      if (data.getInt() != 7) return "Missing field 7 in the header.";
+      if ((problem = checkPString(data)) != null) return problem;
+      product = readPString(data);
+    } catch (RuntimeException e) {
+      return "Header is truncated or corrupt.";
+    }
+
+    //
+    // Image Sections
+    //
+    for (int i = 1; i <= sectionCount; i++) {
+      String where = "Section " + i + " of " + sectionCount + " at byte " + data.position();
+      try {
+        if (data.getInt() != 0 || data.getInt() != 16 || data.getInt() != 0) {
+          return where + ": bad section header.";
+        }
+        int height = data.getShort() & 0xffff;
+        int width = data.getShort() & 0xffff;
+        if (width == 0 || height == 0) return where + ": empty " + width + "x" + height + " image.";
+        if ((data.getShort() & 0xffff) != 2064) return where + ": bad section header.";
+        int lineBytes = data.getShort() & 0xffff;
+        if (lineBytes != ((width * 2) & 0xffff)) {
+          return where + ": line length " + lineBytes + " doesn't match width " + width + ".";
+        }
+        if (data.getInt() != 0) return where + ": bad section header.";
+
+        long pixels = (long)width * height;
+        String problem = checkPlane(data, SrfWriter.ALPHA_PLANE, pixels, "alpha");
+        if (problem == null) problem = checkPlane(data, SrfWriter.RGB_PLANE, pixels * 2, "RGB");
+        if (problem != null) return where + ": " + problem;
+      } catch (RuntimeException e) {
+        return where + ": truncated.";
+      }
+    }
+
+    //
+    // Footer
+    //
+    if (size % 256 != 0) return "Length " + size + " isn't a multiple of 256.";
+    int end = size - 1;
+    for (int pos = data.position(); pos < end; pos++) {
+      if (data.get(pos) != (byte)0xff) return "Unexpected data after the last section, at byte " + pos + ".";
+    }
+    if (data.position() > end) return "No room for the checkbyte.";
+
+    int sum = byteSum(data, 0, size) & 255;
+    if (sum != 0) {
+      // The original Png2Srf only counted the first byte of each string.
+      int skipped = byteSum(SrfReader.FILE_IDENTIFIER.substring(1)) +
+                    byteSum(code.substring(Math.min(1, code.length()))) +
+                    byteSum(version.substring(Math.min(1, version.length()))) +
+                    byteSum(product.substring(Math.min(1, product.length())));
+      if (sum == (skipped & 255)) {
+        return "Bad checkbyte, from the old Png2Srf checksum bug (convert it again to fix).";
+      }
+      return "Bad checksum: bytes sum to " + sum + " mod 256, not 0.";
+    }
+    return null;
+  }
+
+  static String checkPlane(ByteBuffer data, int tag, long length, String name) {
+    int actualTag = data.getInt();
+    long actualLength = data.getInt() & 0xffffffffL;
+    if (actualTag != tag) return name + " plane has tag " + actualTag + ", not " + tag + ".";
+    if (actualLength != length) return name + " plane is " + actualLength + " bytes, not " + length + ".";
+    if (length > data.remaining()) return name + " plane is truncated.";
+    data.position(data.position() + (int)length);
+    return null;
+  }
+
+  // Whether the string at the current position fits in the file, without
+  // moving: null if it does, or what's wrong with its length.
+  static String checkPString(ByteBuffer data) {
+    int at = data.position();
+    long length = data.getInt(at);
+    if (length < 0) return "String length " + length + " at byte " + at + " is negative.";
+    if (length > data.limit() - (at + 4)) return "String length " + length + " at byte " + at + " runs past the end of the file.";
+    return null;
+  }
+
+  static String readPString(ByteBuffer data) {
+    byte[] bytes = new byte[data.getInt()];
+    data.get(bytes);
+    return new String(bytes);
+  }
+
+  // Sum of the bytes from..to, taken eight at a time: each long's bytes are
+  // split into two sets of four 16-bit lanes and added up lane-wise.  A lane
+  // gains at most 510 a long, so the lanes are folded into the total every
+  // 128 longs, before one could carry into the next.
+  static int byteSum(ByteBuffer data, int from, int to) {
+    LongBuffer longs = data.duplicate().position(from).limit(to).slice().asLongBuffer();
+    int total = 0;
+    int n = longs.remaining();
+    int i = 0;
+    while (i < n) {
+      int stop = Math.min(n, i + 128);
+      long lanes = 0;
+      for (; i < stop; i++) {
+        long v = longs.get(i);
+        lanes += (v & 0x00ff00ff00ff00ffL) + ((v >>> 8) & 0x00ff00ff00ff00ffL);
+      }
+      total += (int)((lanes & 0xffff) + ((lanes >>> 16) & 0xffff) + ((lanes >>> 32) & 0xffff) + (lanes >>> 48));
+    }
+    for (int pos = from + n * 8; pos < to; pos++) {
+      total += data.get(pos) & 255;
+    }
+    return total;
+  }
+
+  static int byteSum(String s) {
+    byte[] bytes = s.getBytes();
+    int sum = 0;
+    for (int i = 0; i < bytes.length; i++) sum += bytes[i] & 255;
+    return sum;
+  }
+}
@@ -0,0 +1,286 @@
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+// Watches a folder of PNG vehicles and converts each one to an SRF as soon
+// as it's edited, in one long-running JVM so only the first conversion pays
+// for startup and JIT warm-up.
+//
+// A vehicle is its base.png, base_info.txt and (optionally) base_mask.png,
+// and a change to any of them converts that vehicle alone.  Saving a sheet
+// usually means several writes, to one or more of the files, so a vehicle is
+// only converted once none of them has changed for the delay.  The SRF is
+// written to a temporary file beside it and moved into place, so a game or
+// viewer never sees half of one.
+//
+// Vehicles whose SRF is missing or older than their files are converted at
+// startup too.  Sub-folders are watched, including ones made later.
+//
+//   java SrfWatch [--delay=MS] <watch_dir> [<out_dir>]
+public class SrfWatch {
+  public static final int DEFAULT_DELAY = 500;
+
+  Path watchDir;
+  Path outputDir;
+  long delayNanos = DEFAULT_DELAY * 1000000L;
+  boolean json = false;
+  PrintStream log = System.out;
+
+  WatchService watcher;
+  HashMap<WatchKey, Path> watchedDirs = new HashMap<WatchKey, Path>();
+  // Vehicle base -> { first change, last change } of the changes waiting
+  // for the delay to pass, in nanoTime.
+  HashMap<Path, long[]> pending = new HashMap<Path, long[]>();
+
+  public static void main(String[] args) {
+    SrfWatch watch = new SrfWatch();
+
+    int curArg = 0;
+    while (curArg < args.length && args[curArg].startsWith("-")) {
+      if (args[curArg].startsWith("--delay=")) {
+        watch.delayNanos = Math.max(0, SrfBatch.safeParseInt(args[curArg].substring(8))) * 1000000L;
+      } else if (args[curArg].equals("--json")) {
+        watch.json = true;
+      } else {
+        printUsage();
+        return;
+      }
+      curArg += 1;
+    }
+    if (curArg != args.length - 1 && curArg != args.length - 2) {
+      printUsage();
+      return;
+    }
+    watch.watchDir = Paths.get(args[curArg]).toAbsolutePath().normalize();
+    watch.outputDir = Paths.get(args[curArg == args.length - 1 ? curArg : curArg + 1]).toAbsolutePath().normalize();
+
+    try {
+      watch.run();
+    } catch (IOException e) {
+      System.out.println("Error: " + e.getMessage());
+      System.exit(1);
+    } catch (InterruptedException e) {
+      // Asked to stop.
+    }
+  }
+
+  public static void printUsage() {
+    System.out.println("");
+    System.out.println("Usage: java SrfWatch [options] <watch_dir> [<out_dir>]");
+    System.out.println("");
+    System.out.println("Converts each vehicle (vehicle.png, vehicle_info.txt and maybe");
+    System.out.println("vehicle_mask.png) under watch_dir to vehicle.srf whenever one of its");
+    System.out.println("files changes, until stopped.  SRFs go beside the PNGs, or under");
+    System.out.println("out_dir at the same relative path.");
+    System.out.println("");
+    System.out.println("Options:");
+    System.out.println("  --delay=MS Wait until a vehicle's files have been left alone this long");
+    System.out.println("     before converting it (default " + DEFAULT_DELAY + ").");
+    System.out.println("  --json Also print a line of JSON timing each conversion's phases.");
+    System.out.println("");
+  }
+
+  public void run() throws IOException, InterruptedException {
+    if (!Files.isDirectory(watchDir)) throw new IOException("Couldn't find directory '" + watchDir + "'.");
+    watcher = FileSystems.getDefault().newWatchService();
+    try {
+      // Watch first, so nothing changed during the scan is missed.
+      watchTree(watchDir);
+      queueStale();
+      log.println("Watching " + watchDir + " for changes.  Press Ctrl-C to stop.");
+
+      while (true) {
+        convertSettled();
+        WatchKey key;
+        Long wait = nextDeadline();
+        if (wait == null) {
+          key = watcher.take();
+        } else {
+          key = watcher.poll(Math.max(1, wait / 1000000), TimeUnit.MILLISECONDS);
+        }
+        // Everything already waiting is part of the same burst.
+        while (key != null) {
+          handleEvents(key);
+          key = watcher.poll();
+        }
+      }
+    } finally {
+      watcher.close();
+    }
+  }
+
+  //
+  // Watching
+  //
+
+  // Watch root and every folder under it.  A folder deleted while we walk
+  // is skipped, and the rest are still watched.
+  void watchTree(Path root) throws IOException {
+    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+        WatchKey key;
+        try {
+          key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                             StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (NoSuchFileException e) {
+          return FileVisitResult.SKIP_SUBTREE;
+        }
+        watchedDirs.put(key, dir);
+        return FileVisitResult.CONTINUE;
+      }
+
+      public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+        if (e instanceof NoSuchFileException) return FileVisitResult.CONTINUE;
+        throw e;
+      }
+    });
+  }
+
+  void handleEvents(WatchKey key) throws IOException {
+    Path dir = watchedDirs.get(key);
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+        // Events were lost, so look at everything again.
+        log.println("Too many changes at once; checking every vehicle.");
+        queueStale();
+        continue;
+      }
+      if (dir == null) continue;
+      Path path = dir.resolve((Path)event.context());
+      if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+        // A new folder may already have vehicles in it.  It may also be
+        // gone again already (an editor's temporary folder, a checkout),
+        // which is no reason to stop watching the rest.
+        try {
+          watchTree(path);
+          queueStale(path);
+        } catch (IOException e) {
+          if (Files.exists(path)) {
+            log.println("Couldn't watch " + watchDir.relativize(path) + ": " + SrfBatch.describe(e));
+          }
+        }
+        continue;
+      }
+      Path base = vehicleBase(path);
+      if (base != null) changed(base);
+    }
+    if (!key.reset()) watchedDirs.remove(key);
+  }
+
+  // The vehicle a file belongs to, or null if it isn't one of a vehicle's
+  // files.
+  static Path vehicleBase(Path file) {
+    String name = file.getFileName().toString();
+    String lower = name.toLowerCase();
+    String[] suffixes = { "_info.txt", "_mask.png", ".png" };
+    for (String suffix : suffixes) {
+      if (lower.endsWith(suffix) && name.length() > suffix.length()) {
+        return file.resolveSibling(name.substring(0, name.length() - suffix.length()));
+      }
+    }
+    return null;
+  }
+
+  void changed(Path base) {
+    long now = System.nanoTime();
+    long[] times = pending.get(base);
+    if (times == null) {
+      pending.put(base, new long[] { now, now });
+    } else {
+      times[1] = now;
+    }
+  }
+
+  // Nanoseconds until the next pending vehicle settles, or null if none
+  // are pending.
+  Long nextDeadline() {
+    if (pending.isEmpty()) return null;
+    long now = System.nanoTime();
+    long soonest = Long.MAX_VALUE;
+    for (long[] times : pending.values()) {
+      soonest = Math.min(soonest, times[1] + delayNanos - now);
+    }
+    return Math.max(0, soonest);
+  }
+
+  // Queue every vehicle under the watched directory (or dir) whose SRF is
+  // missing or older than any of its files.
+  void queueStale() throws IOException {
+    queueStale(watchDir);
+  }
+
+  void queueStale(Path dir) throws IOException {
+    SrfBatch finder = new SrfBatch();
+    finder.toPng = false;
+    finder.outputDir = new File(".");
+    List<File[]> jobs = new ArrayList<File[]>();
+    finder.findInputs(dir.toString(), jobs);
+    for (File[] job : jobs) {
+      Path base = job[0].toPath().toAbsolutePath().normalize();
+      long srfModified = outputFor(base).toFile().lastModified();
+      String[] inputs = { ".png", "_mask.png", "_info.txt" };
+      for (String suffix : inputs) {
+        if (new File(base + suffix).lastModified() > srfModified) {
+          changed(base);
+          break;
+        }
+      }
+    }
+  }
+
+  Path outputFor(Path base) {
+    return outputDir.resolve(watchDir.relativize(base).toString() + ".srf");
+  }
+
+  //
+  // Converting
+  //
+
+  // Convert each pending vehicle that's been left alone for the delay.
+  void convertSettled() {
+    long now = System.nanoTime();
+    List<Path> settled = new ArrayList<Path>();
+    for (Map.Entry<Path, long[]> entry : pending.entrySet()) {
+      if (now - entry.getValue()[1] >= delayNanos) settled.add(entry.getKey());
+    }
+    Collections.sort(settled);
+    for (Path base : settled) {
+      long[] times = pending.remove(base);
+      convert(base, times[0]);
+    }
+  }
+
+  void convert(Path base, long firstChange) {
+    // Mid-save, or it's a PNG that isn't a vehicle; either way there's
+    // nothing to do until the rest turns up.
+    if (!Files.exists(Paths.get(base + ".png")) || !Files.exists(Paths.get(base + "_info.txt"))) return;
+
+    Path srf = outputFor(base);
+    File temp = null;
+    PhaseTimer timer = new PhaseTimer("png2srf", base.toString());
+    try {
+      Files.createDirectories(srf.getParent());
+      temp = File.createTempFile("." + srf.getFileName(), ".srf", srf.getParent().toFile());
+      new Png2Srf(SrfBatch.QUIET).convert(base.toString(), temp.getPath(), true, timer);
+      try {
+        Files.move(temp.toPath(), srf, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp.toPath(), srf, StandardCopyOption.REPLACE_EXISTING);
+      }
+      long latency = System.nanoTime() - firstChange;
+      log.println(String.format("Converted %s in %d ms (%d ms after the first change).",
+                                outputDir.relativize(srf), timer.getTotalNanos() / 1000000, latency / 1000000));
+      if (json) log.println(timer.toJson());
+    } catch (IOException e) {
+      if (temp != null) temp.delete();
+      log.println("Failed: " + watchDir.relativize(base) + ": " + SrfBatch.describe(e));
+    } catch (RuntimeException e) {
+      // A PNG caught half-written can upset ImageIO in other ways; keep
+      // watching, and it'll be converted again when the write finishes.
+      if (temp != null) temp.delete();
+      log.println("Failed: " + watchDir.relativize(base) + ": " + SrfBatch.describe(e));
+    }
+  }
+}
@@ -0,0 +1,186 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+// Writes an SRF file through a large direct buffer and a channel, instead of
+// a system call per byte.  See srf_format_details.txt for the layout.
+//
+// The checksum is a running byte sum, taken over each buffer as it's flushed,
+// and the footer pads the file out from our own count of bytes written.
+public class SrfWriter {
+  public static final int ALPHA_PLANE = 11;
+  public static final int RGB_PLANE = 1;
+  static final int BUFFER_SIZE = 256 * 1024;
+
+  WritableByteChannel channel;
+  ByteBuffer buffer;
+  int checksum = 0;
+  long bytesFlushed = 0;
+
+  public SrfWriter(String filename) throws IOException {
+    this(new FileOutputStream(filename).getChannel());
+  }
+
+  public SrfWriter(WritableByteChannel out) {
+    channel = out;
+    buffer = BufferPool.SHARED.takeDirect(BUFFER_SIZE);
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  public void writeHeader(int sectionCount) throws IOException {
+    writeBytes(SrfReader.FILE_IDENTIFIER.getBytes());
+    writeInt32(4);
+    writeInt32(4);
+    writeInt32(sectionCount);
+    writeInt32(5);
+    writePString("578");
+    writeInt32(6);
+    writePString("1.00");
+    writeInt32(7);
+    writePString("006-D0578-XX");
+  }
+
+  // The header in front of each image section.  Its planes follow, each
+  // introduced by writePlaneHeader().
+  public void writeSectionHeader(int width, int height) throws IOException {
+    writeInt32(0);
+    writeInt32(16);
+    writeInt32(0);
+    writeInt16(height);
+    writeInt16(width);
+    writeInt16(2064);
+    writeInt16(width * 2);
+    writeInt32(0);
+  }
+
+  public void writePlaneHeader(int type, int length) throws IOException {
+    writeInt32(type);
+    writeInt32(length);
+  }
+
+  // Pad out to a multiple of 256 bytes with 0xff, ending with the checkbyte
+  // that brings the sum of every byte in the file to a multiple of 256.
+  public void writeFooter() throws IOException {
+    long bytesToWrite = 255 - (getBytesWritten() % 256);
+    for (long x = 0; x < bytesToWrite; x++) {
+      writeByte(0xff);
+    }
+    flush();
+    writeByte((256 - (checksum & 255)) & 255);
+    flush();
+  }
+
+  public long getBytesWritten() {
+    return bytesFlushed + buffer.position();
+  }
+
+  public void writeByte(int b) throws IOException {
+    if (!buffer.hasRemaining()) flush();
+    buffer.put((byte)b);
+  }
+
+  public void writeBytes(byte[] bytes) throws IOException {
+    writeBytes(bytes, 0, bytes.length);
+  }
+
+  public void writeBytes(byte[] bytes, int offset, int length) throws IOException {
+    while (length > 0) {
+      if (!buffer.hasRemaining()) flush();
+      int n = Math.min(length, buffer.remaining());
+      buffer.put(bytes, offset, n);
+      offset += n;
+      length -= n;
+    }
+  }
+
+  // Write bytes whose sum (mod 256 is all that matters) the caller already
+  // has, e.g. a plane encoded in parallel bands that each summed their own
+  // bytes.  They go straight to the channel rather than through the buffer.
+  public void writeSummedBytes(byte[] bytes, int sum) throws IOException {
+    flush();
+    ByteBuffer data = ByteBuffer.wrap(bytes);
+    while (data.hasRemaining()) {
+      channel.write(data);
+    }
+    checksum += sum;
+    bytesFlushed += bytes.length;
+  }
+
+  // The same for the bytes between data's position and limit, which is
+  // left unchanged.  A direct buffer goes to the channel without a copy.
+  public void writeSummedBytes(ByteBuffer data, int sum) throws IOException {
+    flush();
+    data = data.duplicate();
+    int length = data.remaining();
+    while (data.hasRemaining()) {
+      channel.write(data);
+    }
+    checksum += sum;
+    bytesFlushed += length;
+  }
+
+  // Write little-endian shorts.
+  public void writeInt16s(short[] shorts, int offset, int length) throws IOException {
+    while (length > 0) {
+      if (buffer.remaining() < 2) flush();
+      int n = Math.min(length, buffer.remaining() / 2);
+      buffer.asShortBuffer().put(shorts, offset, n);
+      buffer.position(buffer.position() + n * 2);
+      offset += n;
+      length -= n;
+    }
+  }
+
+  // Write a little-endian short.
+  public void writeInt16(int i) throws IOException {
+    if (buffer.remaining() < 2) flush();
+    buffer.putShort((short)i);
+  }
+
+  // Write a little-endian int.
+  public void writeInt32(int i) throws IOException {
+    if (buffer.remaining() < 4) flush();
+    buffer.putInt(i);
+  }
+
+  // Write a string -- one that's prefixed by a 32-bit int with its length.
+  public void writePString(String string) throws IOException {
+    byte[] bytes = string.getBytes();
+    writeInt32(bytes.length);
+    writeBytes(bytes);
+  }
+
+  // Add the buffered bytes to the checksum and hand them to the channel.
+  public void flush() throws IOException {
+    int len = buffer.position();
+    for (int i = 0; i < len; i++) {
+      checksum += buffer.get(i) & 255;
+    }
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+    bytesFlushed += len;
+  }
+
+  // Closes the channel and gives the buffer back to the BufferPool.
+  public void close() throws IOException {
+    if (buffer == null) return;
+    try {
+      flush();
+      channel.close();
+    } finally {
+      release();
+    }
+  }
+
+  // Gives the buffer back to the BufferPool without flushing it or closing
+  // the channel: for a channel the caller owns (after a flush()), or an SRF
+  // abandoned part way through.  The writer can't be used afterwards.
+  public void release() {
+    if (buffer == null) return;
+    BufferPool.SHARED.give(buffer);
+    buffer = null;
+  }
+}
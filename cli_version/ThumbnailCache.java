@@ -0,0 +1,167 @@
+import java.awt.image.BufferedImage;
+import javax.imageio.ImageIO;
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+
+// Keeps previews from Thumbnails on disk, so showing a folder of vehicles a
+// second time doesn't decode anything.  Previews are named by the SHA-1 of
+// the vehicle file's contents and the preview size, so a copied or renamed
+// file still hits, and an edited one misses.
+//
+// Hashing means reading the whole file, so the hashes are remembered too,
+// in an index file keyed by path and only trusted while the file's
+// modification time and size are unchanged.
+//
+// The directory is srf.thumbnails.dir, or .srf_converter/thumbnails in the
+// user's home directory.
+public class ThumbnailCache {
+  static final String INDEX = "index.txt";
+
+  File dir;
+  // Path -> { modified, length, hash }, loaded from the index when first needed.
+  HashMap<String, String[]> hashes = null;
+  int hits = 0, misses = 0;
+
+  public ThumbnailCache() {
+    this(defaultDir());
+  }
+
+  public ThumbnailCache(File dir) {
+    this.dir = dir;
+  }
+
+  public static File defaultDir() {
+    String dir = System.getProperty("srf.thumbnails.dir");
+    if (dir != null) return new File(dir);
+    return new File(new File(System.getProperty("user.home"), ".srf_converter"), "thumbnails");
+  }
+
+  // The preview of file at the given size, from the cache if it's there, or
+  // made and saved if not.
+  public BufferedImage get(File file, int size) throws IOException {
+    String hash = contentHash(file);
+    File cached = new File(dir, hash + "_" + size + ".png");
+    if (cached.exists()) {
+      BufferedImage preview = ImageIO.read(cached);
+      if (preview != null) {
+        count(true);
+        return preview;
+      }
+    }
+
+    count(false);
+    BufferedImage preview = Thumbnails.read(file, size);
+    save(preview, cached);
+    return preview;
+  }
+
+  synchronized void count(boolean hit) {
+    if (hit) hits += 1; else misses += 1;
+  }
+
+  public synchronized String getStats() {
+    return hits + " hits, " + misses + " misses (" + dir + ")";
+  }
+
+  // Write to a temporary file and move it into place, so another process
+  // never sees half a preview.  A preview we can't save is still returned.
+  void save(BufferedImage preview, File cached) {
+    File temp = null;
+    try {
+      dir.mkdirs();
+      temp = File.createTempFile("thumb", ".tmp", dir);
+      OutputStream out = new BufferedOutputStream(new FileOutputStream(temp));
+      try {
+        PngWriter.write(preview, out, PngWriter.DEFAULT_LEVEL, PngWriter.ADAPTIVE, false);
+      } finally {
+        out.close();
+      }
+      Files.move(temp.toPath(), cached.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                 StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      if (temp != null) temp.delete();
+    }
+  }
+
+  // The SHA-1 of the file's contents, in hex.
+  public String contentHash(File file) throws IOException {
+    String path = file.getCanonicalPath();
+    long modified = file.lastModified(), length = file.length();
+    synchronized (this) {
+      if (hashes == null) loadIndex();
+      String[] known = hashes.get(path);
+      if (known != null && known[0].equals(String.valueOf(modified)) && known[1].equals(String.valueOf(length))) {
+        return known[2];
+      }
+    }
+
+    String hash = hashFile(file);
+    String[] entry = { String.valueOf(modified), String.valueOf(length), hash };
+    synchronized (this) {
+      hashes.put(path, entry);
+      appendIndex(path, entry);
+    }
+    return hash;
+  }
+
+  static String hashFile(File file) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException("No SHA-1 digest available.");
+    }
+    FileChannel channel = new FileInputStream(file).getChannel();
+    try {
+      MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      digest.update(data);
+    } finally {
+      channel.close();
+    }
+    StringBuilder hex = new StringBuilder();
+    byte[] bytes = digest.digest();
+    for (int i = 0; i < bytes.length; i++) hex.append(String.format("%02x", bytes[i] & 255));
+    return hex.toString();
+  }
+
+  // Index lines are "modified<tab>length<tab>hash<tab>path"; later lines
+  // for a path replace earlier ones.
+  void loadIndex() {
+    hashes = new HashMap<String, String[]>();
+    File index = new File(dir, INDEX);
+    if (!index.exists()) return;
+    try {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(index), "UTF-8"));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          String[] fields = line.split("\t", 4);
+          if (fields.length == 4) hashes.put(fields[3], new String[] { fields[0], fields[1], fields[2] });
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (IOException e) {
+      // Start over; the hashes will be worked out again.
+      hashes.clear();
+    }
+  }
+
+  void appendIndex(String path, String[] entry) {
+    try {
+      dir.mkdirs();
+      Writer writer = new OutputStreamWriter(new FileOutputStream(new File(dir, INDEX), true), "UTF-8");
+      try {
+        writer.write(entry[0] + "\t" + entry[1] + "\t" + entry[2] + "\t" + path + "\n");
+      } finally {
+        writer.close();
+      }
+    } catch (IOException e) {
+      // Only costs hashing the file again next time.
+    }
+  }
+}
@@ -0,0 +1,57 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.beans.*;
+import java.io.File;
+import javax.swing.*;
+
+// A file chooser accessory showing a preview of the selected vehicle.  The
+// preview comes from the ThumbnailCache on a background thread, so clicking
+// through a folder never holds up the dialog; a preview that arrives after
+// the selection has moved on is dropped.
+@SuppressWarnings("serial")
+public class ThumbnailPreview extends JComponent implements PropertyChangeListener {
+  static ThumbnailCache cache = null;
+
+  File file = null;
+  BufferedImage preview = null;
+
+  public ThumbnailPreview(JFileChooser chooser) {
+    int side = Thumbnails.DEFAULT_SIZE + 12;
+    setPreferredSize(new Dimension(side, side));
+    chooser.addPropertyChangeListener(JFileChooser.SELECTED_FILE_CHANGED_PROPERTY, this);
+  }
+
+  static synchronized ThumbnailCache getCache() {
+    if (cache == null) cache = new ThumbnailCache();
+    return cache;
+  }
+
+  public void propertyChange(PropertyChangeEvent e) {
+    file = (File)e.getNewValue();
+    preview = null;
+    repaint();
+    if (file == null || !file.isFile()) return;
+
+    final File wanted = file;
+    new SwingWorker<BufferedImage, Void>() {
+      protected BufferedImage doInBackground() throws Exception {
+        return getCache().get(wanted, Thumbnails.DEFAULT_SIZE);
+      }
+
+      protected void done() {
+        if (wanted != file) return;
+        try {
+          preview = get();
+        } catch (Exception e) {
+          preview = null; // not a vehicle we can read; show nothing
+        }
+        repaint();
+      }
+    }.execute();
+  }
+
+  protected void paintComponent(Graphics g) {
+    if (preview == null) return;
+    g.drawImage(preview, (getWidth() - preview.getWidth()) / 2, (getHeight() - preview.getHeight()) / 2, null);
+  }
+}
@@ -0,0 +1,166 @@
+import java.awt.image.*;
+import javax.imageio.*;
+import javax.imageio.stream.ImageInputStream;
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+// Small previews of a vehicle: the first frame of its 3D view, scaled down
+// to fit a square.  For an SRF only section 1 is touched, and only the
+// pixels that land in the preview are decoded, picked straight out of the
+// alpha and RGB565 planes.  For a PNG, ImageIO reads just the frame's rows
+// and skips the columns and rows in between.
+//
+// Run on its own, this writes a preview of each input for the catalog pages,
+// going through the ThumbnailCache:
+//
+//   java Thumbnails [--size=N] <out_dir> <input>...
+public class Thumbnails {
+  public static final int DEFAULT_SIZE = 128;
+
+  public static void main(String[] args) {
+    int size = DEFAULT_SIZE;
+
+    int curArg = 0;
+    while (curArg < args.length && args[curArg].startsWith("-")) {
+      if (args[curArg].startsWith("--size=")) {
+        size = SrfBatch.safeParseInt(args[curArg].substring(7));
+        if (size <= 0) {
+          printUsage();
+          return;
+        }
+      }
+      curArg += 1;
+    }
+    if (curArg > args.length - 2) {
+      printUsage();
+      return;
+    }
+
+    try {
+      SrfBatch finder = new SrfBatch();
+      finder.toPng = true;
+      finder.outputDir = new File(args[curArg]);
+      List<File[]> jobs = new ArrayList<File[]>();
+      for (int i = curArg + 1; i < args.length; i++) {
+        finder.findInputs(args[i], jobs);
+      }
+      if (jobs.size() == 0) {
+        System.out.println("Error: No SRF files found.");
+        System.exit(1);
+      }
+
+      ThumbnailCache cache = new ThumbnailCache();
+      long start = System.nanoTime();
+      int failures = 0;
+      for (File[] job : jobs) {
+        try {
+          BufferedImage preview = cache.get(job[0], size);
+          File output = new File(job[1].getPath() + ".png");
+          if (output.getParentFile() != null) output.getParentFile().mkdirs();
+          OutputStream out = new BufferedOutputStream(new FileOutputStream(output));
+          try {
+            PngWriter.write(preview, out, PngWriter.DEFAULT_LEVEL, PngWriter.ADAPTIVE, false);
+          } finally {
+            out.close();
+          }
+        } catch (IOException e) {
+          failures += 1;
+          System.out.println("Failed: " + job[0] + ": " + SrfBatch.describe(e));
+        }
+      }
+      double seconds = (System.nanoTime() - start) / 1e9;
+      System.out.println("Wrote " + (jobs.size() - failures) + " of " + jobs.size() + " previews in " +
+                         String.format("%.2fs.", seconds));
+      System.out.println("  Thumbnail cache: " + cache.getStats());
+      if (failures > 0) System.exit(1);
+    } catch (IOException e) {
+      System.out.println("Error: " + e.getMessage());
+      System.exit(1);
+    }
+  }
+
+  public static void printUsage() {
+    System.out.println("");
+    System.out.println("Usage: java Thumbnails [options] <out_dir> <input>...");
+    System.out.println("");
+    System.out.println("Writes a preview PNG of the 3D view of each SRF found in the inputs");
+    System.out.println("(files, directories or globs, as for SrfBatch).");
+    System.out.println("");
+    System.out.println("Options:");
+    System.out.println("  --size=N Fit the previews in N x N pixels (default " + DEFAULT_SIZE + ").");
+    System.out.println("");
+  }
+
+  // A preview of an SRF or PNG file, by its extension.
+  public static BufferedImage read(File file, int size) throws IOException {
+    if (file.getName().toLowerCase().endsWith(".srf")) {
+      return decodePreview(new SrfReader(file.getPath()), size);
+    }
+    return readPngPreview(file, size);
+  }
+
+  // The first frame of section 1 (the 3D views, each as wide as the section
+  // is high), no bigger than size x size.
+  public static BufferedImage decodePreview(SrfReader srf, int size) throws IOException {
+    int width = srf.getSectionWidth(0);
+    int frame = Math.min(width, srf.getSectionHeight(0));
+    SrfReader.Section section = srf.readSection(0);
+    return decodePreview(section.getAlpha(), section.getRgb(), width, frame, frame, size);
+  }
+
+  // The top-left frameWidth x frameHeight of a section whose rows are
+  // width pixels, scaled to fit size x size by taking the pixel nearest the
+  // middle of each preview pixel's patch.  Never scales up.
+  public static BufferedImage decodePreview(ByteBuffer alpha, ByteBuffer rgb, int width,
+                                            int frameWidth, int frameHeight, int size) {
+    double scale = Math.min(1.0, (double)size / Math.max(frameWidth, frameHeight));
+    int previewWidth = Math.max(1, (int)Math.round(frameWidth * scale));
+    int previewHeight = Math.max(1, (int)Math.round(frameHeight * scale));
+    BufferedImage preview = new BufferedImage(previewWidth, previewHeight, BufferedImage.TYPE_INT_ARGB);
+    int[] pixels = ((DataBufferInt)preview.getRaster().getDataBuffer()).getData();
+
+    ShortBuffer colors = rgb.duplicate().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+    int[] columns = new int[previewWidth];
+    for (int x = 0; x < previewWidth; x++) {
+      columns[x] = (int)((2L * x + 1) * frameWidth / (2 * previewWidth));
+    }
+    for (int y = 0, i = 0; y < previewHeight; y++) {
+      int row = (int)((2L * y + 1) * frameHeight / (2 * previewHeight)) * width;
+      for (int x = 0; x < previewWidth; x++, i++) {
+        int pos = row + columns[x];
+        pixels[i] = (PixelKernels.decodeAlpha(alpha.get(pos)) << 24) +
+                    PixelKernels.decodeColor(colors.get(pos) & 0xffff);
+      }
+    }
+    return preview;
+  }
+
+  // The first 3D frame of a vehicle PNG, sized the way the GUI works it out
+  // (a tenth of the width over 36, in tens of pixels), read subsampled.
+  public static BufferedImage readPngPreview(File file, int size) throws IOException {
+    ImageInputStream in = ImageIO.createImageInputStream(file);
+    if (in == null) throw new ConversionException("Couldn't read '" + file + "'.");
+    try {
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+      if (!readers.hasNext()) throw new ConversionException("'" + file + "' isn't a PNG.");
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(in, true, true);
+        int width = reader.getWidth(0), height = reader.getHeight(0);
+        int frame = width / 360 * 10;
+        if (frame == 0 || frame > height) frame = Math.min(width, height);
+
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(new java.awt.Rectangle(0, 0, frame, frame));
+        int step = Math.max(1, (frame + size - 1) / size);
+        param.setSourceSubsampling(step, step, 0, 0);
+        return reader.read(0, param);
+      } finally {
+        reader.dispose();
+      }
+    } finally {
+      in.close();
+    }
+  }
+}
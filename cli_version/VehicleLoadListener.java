@@ -0,0 +1,17 @@
+import java.awt.image.BufferedImage;
+import java.util.List;
+
+// Hears how a VehicleLoader is getting on.  Every call comes on the event
+// thread, and a cancelled load doesn't call anything more.
+public interface VehicleLoadListener {
+  // The 3D frames, as soon as the rows holding them have been decoded.  Not
+  // called if the sheet is too small to have any, or is an interlaced PNG.
+  void framesLoaded(String path, List<BufferedImage> frames);
+
+  // 0 to 100.
+  void loadProgress(String path, int percent);
+
+  void loaded(String path, BufferedImage image);
+
+  void loadFailed(String path, String message);
+}
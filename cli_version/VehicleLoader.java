@@ -0,0 +1,137 @@
+import java.awt.image.BufferedImage;
+import java.beans.*;
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import javax.imageio.*;
+import javax.imageio.event.IIOReadUpdateListener;
+import javax.imageio.stream.ImageInputStream;
+import javax.swing.SwingWorker;
+
+// Loads a vehicle's image sheet (SRF or PNG) on a background thread, so the
+// GUI stays responsive however big it is.  The row of 3D frames across the
+// top is handed over as soon as it's decoded, so the animation can start
+// while the rest of the sheet is still coming; an SRF's first section is
+// decoded first for that reason, and a PNG's rows are watched as ImageIO
+// reads them.
+//
+// cancel() stops a load between SRF sections, or within a PNG.
+public class VehicleLoader extends SwingWorker<BufferedImage, BufferedImage> {
+  // The GUI assumes 36 views of each kind.
+  public static final int FRAME_COUNT = 36;
+
+  String path;
+  VehicleLoadListener listener;
+  boolean framesPublished = false;
+
+  public VehicleLoader(String path, VehicleLoadListener listener) {
+    this.path = path;
+    this.listener = listener;
+    addPropertyChangeListener(new PropertyChangeListener() {
+      public void propertyChange(PropertyChangeEvent e) {
+        if ("progress".equals(e.getPropertyName()) && !isCancelled()) {
+          VehicleLoader.this.listener.loadProgress(VehicleLoader.this.path, (Integer)e.getNewValue());
+        }
+      }
+    });
+  }
+
+  public String getPath() { return path; }
+
+  // The size of the square 3D frames in a sheet this wide, worked out the
+  // way VehicleImage does: a tenth of the width over 36, in tens of pixels.
+  public static int frameSize(int sheetWidth) {
+    return sheetWidth / 360 * 10;
+  }
+
+  protected BufferedImage doInBackground() throws Exception {
+    if (path.toLowerCase().endsWith(".srf")) return loadSrf();
+    return loadPng();
+  }
+
+  BufferedImage loadSrf() throws Exception {
+    SrfReader srf = new SrfReader(path);
+    SectionLayout layout = srf.getLayout();
+    BufferedImage image = new BufferedImage(layout.getFullWidth(), layout.getFullHeight(),
+                                            BufferedImage.TYPE_INT_ARGB);
+    long total = 0, done = 0;
+    for (int i = 0; i < layout.getSectionCount(); i++) total += srf.getAlphaLength(i);
+
+    for (int i = 0; i < layout.getSectionCount() && !isCancelled(); i++) {
+      SrfReader.Section section = srf.readSection(i);
+      SectionDecoder.decodeSection(section.getAlpha(), section.getRgb(), section.getWidth(), section.getHeight(),
+                                   image, null, layout.getY(i));
+      done += srf.getAlphaLength(i);
+      publishFrames(image, layout.getY(i) + section.getHeight());
+      setProgress((int)(done * 100 / total));
+    }
+    return image;
+  }
+
+  BufferedImage loadPng() throws Exception {
+    ImageInputStream in = ImageIO.createImageInputStream(new File(path));
+    if (in == null) throw new ConversionException("Couldn't read '" + path + "'.");
+    try {
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+      if (!readers.hasNext()) throw new ConversionException("'" + path + "' isn't a PNG.");
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(in, true, true);
+        final int height = reader.getHeight(0);
+        reader.addIIOReadUpdateListener(new IIOReadUpdateListener() {
+          public void imageUpdate(ImageReader source, BufferedImage image, int minX, int minY,
+                                  int width, int rows, int periodX, int periodY, int[] bands) {
+            // Only a plain (not interlaced) PNG fills in whole rows top to bottom.
+            if (periodX == 1 && periodY == 1) {
+              publishFrames(image, minY + rows);
+              setProgress((minY + rows) * 100 / height);
+            }
+            if (isCancelled()) source.abort();
+          }
+          public void passStarted(ImageReader source, BufferedImage image, int pass, int minPass, int maxPass,
+                                  int minX, int minY, int periodX, int periodY, int[] bands) {}
+          public void passComplete(ImageReader source, BufferedImage image) {}
+          public void thumbnailPassStarted(ImageReader source, BufferedImage thumbnail, int pass, int minPass,
+                                           int maxPass, int minX, int minY, int periodX, int periodY, int[] bands) {}
+          public void thumbnailUpdate(ImageReader source, BufferedImage thumbnail, int minX, int minY,
+                                      int width, int height, int periodX, int periodY, int[] bands) {}
+          public void thumbnailPassComplete(ImageReader source, BufferedImage thumbnail) {}
+        });
+        BufferedImage image = reader.read(0);
+        setProgress(100);
+        return image;
+      } finally {
+        reader.dispose();
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  // Hand over the 3D frames once rowsDone rows of the sheet are decoded.
+  // They're views of the sheet, whose top rows don't change after this.
+  void publishFrames(BufferedImage image, int rowsDone) {
+    int size = frameSize(image.getWidth());
+    if (framesPublished || size == 0 || rowsDone < size) return;
+    framesPublished = true;
+    int count = Math.min(FRAME_COUNT, image.getWidth() / size);
+    BufferedImage[] frames = new BufferedImage[count];
+    for (int i = 0; i < count; i++) frames[i] = image.getSubimage(i * size, 0, size, size);
+    publish(frames);
+  }
+
+  protected void process(List<BufferedImage> frames) {
+    if (!isCancelled()) listener.framesLoaded(path, frames);
+  }
+
+  protected void done() {
+    if (isCancelled()) return;
+    try {
+      listener.loaded(path, get());
+    } catch (ExecutionException e) {
+      listener.loadFailed(path, SrfBatch.describe(e.getCause()));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -2,6 +2,7 @@ include Java
 $LOAD_PATH << "lib"                              # running from filesystem
 $LOAD_PATH << "net/techmods/srf_converter/lib"   # running from jar
 $CLASSPATH << "vendor/swingx-0.9.2.jar"          # running from filesystem
+$CLASSPATH << "classes"                          # SRF reader, from rake java:cli
 
 require "view_builder"
 require "srf_converter"
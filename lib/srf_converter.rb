@@ -1,14 +1,22 @@
 
 class VehicleImage
-  import java.awt.image.BufferedImage
   attr_accessor :images_3d, :images_2d
-  def initialize(path)
-    puts "Loading vehicle: #{path}"
-    if path =~ /\.srf$/i
-      @full_image = load_srf(path)
-    else
-      @full_image = javax.imageio.ImageIO.read(java.io.File.new(path))
+  attr_reader :full_image
+
+  # full_image is the decoded sheet, from Java::VehicleLoader.  Pass the
+  # images from an earlier VehicleImage#to_java_images to reuse them instead
+  # of slicing it up again.
+  def initialize(path, full_image, images = nil)
+    puts "Vehicle: #{path}"
+    @full_image = full_image
+    if images
+      images = images.to_a
+      @images_3d = images[1, 36]
+      @images_2d = images[37, 36]
+      puts "  From cache: #{@full_image.width}x#{@full_image.height}"
+      return
     end
+    puts "  Total Dimensions: #{@full_image.width}x#{@full_image.height}"
 
     # 3d images are biggest, so assume the width of the image tells us the size of those.
     @size_3d = (@full_image.width / 360.0).floor * 10
@@ -33,66 +41,22 @@ class VehicleImage
     @images_2d = (0..35).to_a.collect { |x| @full_image.get_subimage(x*@size_2d, @size_3d, @size_2d, @size_2d) }
     
   end
-  def load_srf(path)
-    srf_data = File.read(path)
-    raise "Invalid SRF File" unless srf_data[0,16] == 'GARMIN BITMAP 01'
-    
-    subimage_count = srf_data[24,4].unpack('V').first
-    puts "  Subsections: #{subimage_count}"
-
-    # Go through the various header strings to find where the first subimage is.
-    subimage_base = 32
-    subimage_base += srf_data[subimage_base,4].unpack('V').first + 8 # The "578" thing.
-    subimage_base += srf_data[subimage_base,4].unpack('V').first + 8 # The revision number.
-    subimage_base += srf_data[subimage_base,4].unpack('V').first + 4 # The product code.
-    
-    total_height = 0
-    max_width = 0
-    subimages = []
-    subimage_count.times do |i|
-      height,width = srf_data[subimage_base + 12, 4].unpack('vv')
-      puts "  Section #{i+1}: #{width}x#{height}"
-      total_height += height
-      max_width = [max_width, width].max
-      
-      alpha_data = srf_data[subimage_base + 32, width*height].unpack('c*')
-      rgb_data = srf_data[subimage_base + 40 + width*height, width*height*2].unpack('v*')
-      
-      pos = 0
-      scanline_data = []
-      height.times do |y|
-        width.times do |x|
-          a = (alpha_data[pos] & 255) << 1
-          a = (a >= 254) ? 0 : 255 - a
-          c = rgb_data[pos]
-          r,g,b = (c & 0xf800) << 8, (c & 0x07c0) << 5, (c & 0x001f) << 3
-          scanline_data[pos] = (a << 24) + r + g + b
-          pos += 1
-        end
-      end
-      subimages << { :w => width, :h => height, :data => scanline_data }
-      subimage_base += 40 + (width * height * 3)
-    end
-    puts "  Total Dimensions: #{max_width}x#{total_height}"
-    
-    image = BufferedImage.new(max_width, total_height, BufferedImage::TYPE_INT_ARGB)
-    cur_y = 0
-    subimages.each do |subimage|
-      image.setRGB(0, cur_y, subimage[:w], subimage[:h], subimage[:data].to_java(:int), 0, subimage[:w])
-      cur_y += subimage[:h]
-    end
-
-    puts "  Done converting from srf..."
-
-    return image
+  # The full image and the subimages as one Java array, for ImageCache.
+  def to_java_images
+    ([@full_image] + @images_3d + @images_2d).to_java(java.awt.image.BufferedImage)
   end
 end
 
 class SrfConverter
+  # Told by the loader how it's going, always on the event thread.
+  include Java::VehicleLoadListener
+
   def initialize(view_builder)
     @view_builder = view_builder
     
     @loaded_file = nil
+    @loader = nil
+    @image_cache = Java::ImageCache.new
 
     @view_builder.set_callback :open, Proc.new { load_image(@view_builder.get_file_to_open) }
     @view_builder.set_callback :exit, Proc.new { java.lang.System.exit(0) }
@@ -103,9 +67,57 @@ class SrfConverter
     main_frame.visible = true
   end
   
+  # Decoding happens on a background thread (see Java::VehicleLoader), and
+  # opening another file cancels a load that's still going.
   def load_image(image_file)
     return if image_file.nil?
-    @vehicle = VehicleImage.new(image_file)
-    @view_builder.animation_panel.set_images(@vehicle.images_3d)
+    puts "Animation: #{@view_builder.animation_panel.frame_time_stats}" if @vehicle
+    @loader.cancel(true) if @loader
+    @loader = nil
+    @loaded_file = image_file
+
+    images = @image_cache.get(image_file)
+    if images
+      @vehicle = VehicleImage.new(image_file, images[0], images)
+      puts "  Image cache: #{@image_cache.stats}"
+      @view_builder.show_progress nil
+      @view_builder.animation_panel.set_images(@vehicle.images_3d)
+      return
+    end
+
+    puts "Loading vehicle: #{image_file}"
+    @frames_shown = false
+    @view_builder.show_progress 0
+    @loader = Java::VehicleLoader.new(image_file, self)
+    @loader.execute
+  end
+
+  def framesLoaded(path, frames)
+    return unless path == @loaded_file
+    puts "  First frames ready"
+    @frames_shown = true
+    @view_builder.animation_panel.set_images(frames)
+  end
+
+  def loadProgress(path, percent)
+    @view_builder.show_progress percent if path == @loaded_file
+  end
+
+  def loaded(path, image)
+    return unless path == @loaded_file
+    @loader = nil
+    @vehicle = VehicleImage.new(path, image)
+    @image_cache.put(path, @vehicle.to_java_images, Java::ImageCache.estimate_bytes(image))
+    puts "  Image cache: #{@image_cache.stats}"
+    @view_builder.show_progress nil
+    # The same frames the loader already handed over, unless it couldn't.
+    @view_builder.animation_panel.set_images(@vehicle.images_3d) unless @frames_shown
+  end
+
+  def loadFailed(path, message)
+    return unless path == @loaded_file
+    @loader = nil
+    puts "  Couldn't load #{path}: #{message}"
+    @view_builder.show_progress nil
   end
 end
@@ -12,63 +12,6 @@ class VehicleFileFilter < FileFilter
   end
 end
 
-class AnimationPanel < JPanel
-  import javax.imageio.ImageIO
-  
-  attr_accessor :interval
-  
-  def initialize(options = {})
-    super()
-    @interval = options[:interval] || 0.12
-    @images = nil
-    @cur_image = nil
-    @cur_spot = nil
-    @thread = nil
-  end
-
-  def paintComponent(graphics)
-    width = getWidth()
-    height = getHeight()
-    bounds = graphics.getClipBounds()
-    if is_background_set
-      graphics.set_color get_background
-      graphics.fillRect(0, 0, width, height)
-    end
-    graphics.draw_image(@cur_image, (width - @cur_image.width) / 2, (height - @cur_image.height) / 2, nil) if @cur_image
-  end
-
-  def set_images(images)
-    @images = images
-    @cur_spot = 0
-    @cur_image = @images[@cur_spot]
-    start
-  end
-  
-  def next_image
-    @cur_spot = (@cur_spot + 1) % @images.length
-    @cur_image = @images[@cur_spot]
-  end
-
-  def start
-    stop if @thread
-    return unless @images
-    @thread = Thread.new { while true; repaint; sleep @interval; next_image; end }
-  end
-
-  def stop
-    return unless @thread
-    @thread.kill
-    @thread = nil
-  end
-
-  def clear
-    stop
-    @images = nil
-    @cur_image = nil
-    repaint
-  end
-end
-
 class ViewBuilder
   import javax.swing.JFrame
   import javax.swing.JLabel
@@ -80,10 +23,11 @@ class ViewBuilder
   import java.awt.event.ActionListener
   import java.awt.Color
   import javax.swing.BoxLayout
+  import javax.swing.JProgressBar
   
   include ActionListener
 
-  attr_accessor :animation_panel, :settings_panel, :frame
+  attr_accessor :animation_panel, :settings_panel, :progress_bar, :frame
 
   def initialize
     @callbacks = {}
@@ -106,18 +50,23 @@ class ViewBuilder
     @frame = JFrame.new('SRF Converter')
     container_panel = JPanel.new
     container_panel.set_layout BoxLayout.new(container_panel, BoxLayout::X_AXIS)
-    @animation_panel = AnimationPanel.new
+    @animation_panel = Java::AnimationPanel.new
     @settings_panel = JPanel.new
     
     @settings_panel.set_background Color.new(0xffcccc)
     @settings_panel.minimum_size = Dimension.new 150, 300
     @settings_panel.maximum_size = Dimension.new 150, 300
+    @progress_bar = JProgressBar.new(0, 100)
+    @progress_bar.string_painted = true
+    @progress_bar.visible = false
+    @settings_panel.add @progress_bar
     @animation_panel.set_background Color.new(0xccffcc)
     @animation_panel.minimum_size = Dimension.new 250, 300
     @animation_panel.maximum_size = Dimension.new 250, 300
 
     @file_chooser = JFileChooser.new
     @file_chooser.addChoosableFileFilter VehicleFileFilter.new
+    @file_chooser.accessory = Java::ThumbnailPreview.new(@file_chooser)
 
     menu_bar = JMenuBar.new
     file_menu = JMenu.new('File')
@@ -143,6 +92,12 @@ class ViewBuilder
     @frame
   end
   
+  # Show how far a load has got, or hide the bar with nil.
+  def show_progress(percent)
+    @progress_bar.visible = !percent.nil?
+    @progress_bar.value = percent if percent
+  end
+
   def get_file_to_open
     result = @file_chooser.show_open_dialog(@frame)
     (result == JFileChooser::APPROVE_OPTION) ? @file_chooser.get_selected_file.get_path : nil